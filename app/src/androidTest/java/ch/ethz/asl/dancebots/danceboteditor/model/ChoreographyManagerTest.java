@@ -0,0 +1,249 @@
+package ch.ethz.asl.dancebots.danceboteditor.model;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import ch.ethz.asl.dancebots.danceboteditor.adapters.BeatElementAdapter;
+import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotConfiguration;
+import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotEditorManager;
+import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotMusicFile;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Renders the data channel of a song with random beat lengths. The choreography manager needs
+ * the application context for the motion types and the data channel settings, the beat views
+ * are left out.
+ */
+public class ChoreographyManagerTest extends AndroidTestCase {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int NUM_BEATS = 300;
+
+    // Beats edited while the first beats are streamed
+    private static final int NUM_STREAMED_BEATS = 100;
+    private static final int STREAM_EDIT_BEAT = NUM_BEATS - 10;
+
+    private static final MotorType[] MOTOR_TYPES = {
+            MotorType.STRAIGHT, MotorType.SPIN, MotorType.TWIST,
+            MotorType.BACK_AND_FORTH, MotorType.CONSTANT, MotorType.WAIT};
+
+    // The random led type is left out, its messages differ between two renders
+    private static final LedType[] LED_TYPES = {
+            LedType.KNIGHT_RIDER, LedType.BLINK, LedType.SAME_BLINK, LedType.CONSTANT};
+
+    private DanceBotMusicFile mMusicFile;
+    private ChoreographyManager mManager;
+    private Random mRandom;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // The motion types load their colors and names through the editor manager
+        DanceBotEditorManager.getInstance().setContext(getContext());
+
+        mRandom = new Random(42);
+
+        // Beats of about 0.35 s to 0.6 s
+        int[] beatBuffer = new int[NUM_BEATS];
+        int samplePos = 1000;
+        for (int i = 0; i < NUM_BEATS; ++i) {
+            beatBuffer[i] = samplePos;
+            samplePos += 15000 + mRandom.nextInt(12000);
+        }
+
+        mMusicFile = new DanceBotMusicFile("title", "artist", "path", 1000 * samplePos / SAMPLE_RATE);
+        mMusicFile.setSampleRate(SAMPLE_RATE);
+        mMusicFile.setTotalNumberOfSamples(samplePos + 5000);
+        mMusicFile.setNumberOfBeatsDetected(NUM_BEATS);
+        mMusicFile.setBeatBuffer(beatBuffer);
+
+        mManager = new ChoreographyManager(getContext(), new ChoreographyManager.ChoreographyViewManager() {
+
+            @Override
+            public void setLedElementAdapter(BeatElementAdapter ledAdapter) {
+            }
+
+            @Override
+            public void setMotorElementAdapter(BeatElementAdapter motorAdapter) {
+            }
+        }, mMusicFile);
+    }
+
+    public void testLiveChunksContinueCachedLevel() {
+
+        editBeats(1, NUM_STREAMED_BEATS, 60);
+        short[] expected = readCached();
+
+        int[] beatBuffer = mMusicFile.getBeatBuffer();
+        short[] chunk = new short[(int) mMusicFile.getSampleCount()];
+
+        mManager.resetDataStream();
+
+        // Stream beat by beat, every other beat is copied from the data cache
+        for (int beat = 1; beat < NUM_STREAMED_BEATS; ++beat) {
+
+            if (beat % 2 == 0) {
+                // The stream picks up a snapshot at this beat, which is not cached yet
+                editMotorBeat(STREAM_EDIT_BEAT);
+                mManager.publishChoreography();
+            } else {
+                mManager.readDataCached(chunk, 0, 0);
+            }
+
+            int numSamples = beatBuffer[beat + 1] - beatBuffer[beat];
+            mManager.readDataStream(chunk, numSamples, beatBuffer[beat]);
+
+            // A beat rendered live starts from the level the data cache has before the beat
+            assertTrue("beat " + beat, Arrays.equals(
+                    Arrays.copyOfRange(expected, beatBuffer[beat], beatBuffer[beat + 1]),
+                    Arrays.copyOf(chunk, numSamples)));
+        }
+    }
+
+    public void testParallelRenderMatchesSerial() {
+
+        editBeats(1, NUM_BEATS - 2, 200);
+        mManager.publishChoreography();
+
+        // Beats with an odd number of messages invert the level of all following beats
+        int numInvertingBeats = 0;
+        for (int beat = 1; beat < NUM_BEATS - 1; ++beat) {
+            if (isLevelInverted(beat)) {
+                ++numInvertingBeats;
+            }
+        }
+        assertTrue(numInvertingBeats > 0);
+        assertTrue(numInvertingBeats < NUM_BEATS - 2);
+
+        // The beats rendered in parallel must be bit exact with the beats rendered in order
+        mManager.releaseDataCache();
+        assertTrue(Arrays.equals(readSerial(), readCached()));
+    }
+
+    public void testIncrementalRenderMatchesFullRender() {
+
+        final int editedBeat = NUM_BEATS / 2;
+
+        editBeats(1, NUM_BEATS - 2, 200);
+        mManager.publishChoreography();
+        readCached();
+
+        // Edit a beat until its number of messages changes from even to odd or back, which
+        // inverts all following beats, then until it keeps the level again
+        for (boolean isParityChanged : new boolean[] {true, false}) {
+
+            boolean isInverted = isLevelInverted(editedBeat);
+            int numEdits = 0;
+            do {
+                editMotorBeat(editedBeat);
+                mManager.publishChoreography();
+                assertTrue(++numEdits < 100);
+            } while ((isLevelInverted(editedBeat) != isInverted) != isParityChanged);
+
+            // Only the edited beats are rendered again, the song must be bit exact with a
+            // song rendered from scratch
+            short[] incremental = readCached();
+            mManager.releaseDataCache();
+
+            assertTrue(Arrays.equals(readCached(), incremental));
+            assertTrue(Arrays.equals(readSerial(), incremental));
+        }
+    }
+
+    /**
+     * @return true if a beat has an odd number of messages, which inverts the level of all
+     * following beats
+     */
+    private boolean isLevelInverted(int beat) {
+
+        int[] beatBuffer = mMusicFile.getBeatBuffer();
+        return mManager.renderDataEdges(beatBuffer[beat], beatBuffer[beat + 1] - beatBuffer[beat]).isLevelInverted();
+    }
+
+    /**
+     * Apply random motor and led dance sequences which start within a range of beats
+     */
+    private void editBeats(int firstBeat, int lastBeat, int numEdits) {
+
+        for (int i = 0; i < numEdits; ++i) {
+
+            int beat = firstBeat + mRandom.nextInt(lastBeat - firstBeat + 1);
+
+            if (mRandom.nextBoolean()) {
+                editMotorBeat(beat);
+            } else {
+                editLedBeat(beat);
+            }
+        }
+    }
+
+    private void editMotorBeat(int beat) {
+
+        Choreography<MotorBeatElement> choreography = mManager.getMotorChoreography();
+        MotorBeatElement element = choreography.getBeatElements().get(beat);
+
+        int velocity = 10 * mRandom.nextInt(12);
+        element.pushSelectedMenuData(
+                MOTOR_TYPES[mRandom.nextInt(MOTOR_TYPES.length)],
+                0.5f * (1 + mRandom.nextInt(8)), 0, 0, velocity, 110 - velocity);
+
+        int length = 1 + mRandom.nextInt(4);
+        if (element.getDanceSequenceId() == null) {
+            choreography.addNewDanceSequence(element, length);
+        } else {
+            choreography.updateDanceSequence(element, length);
+        }
+    }
+
+    private void editLedBeat(int beat) {
+
+        Choreography<LedBeatElement> choreography = mManager.getLedChoreography();
+        LedBeatElement element = choreography.getBeatElements().get(beat);
+
+        boolean[] ledLightSwitches = new boolean[LedBeatElement.getNumLedLights()];
+        for (int i = 0; i < ledLightSwitches.length; ++i) {
+            ledLightSwitches[i] = mRandom.nextBoolean();
+        }
+
+        element.pushSelectedManuData(
+                LED_TYPES[mRandom.nextInt(LED_TYPES.length)],
+                0.5f * (1 + mRandom.nextInt(8)), ledLightSwitches);
+
+        int length = 1 + mRandom.nextInt(4);
+        if (element.getDanceSequenceId() == null) {
+            choreography.addNewDanceSequence(element, length);
+        } else {
+            choreography.updateDanceSequence(element, length);
+        }
+    }
+
+    /**
+     * @return data channel of the whole song, copied from the data cache
+     */
+    private short[] readCached() {
+
+        short[] dataBuffer = new short[(int) mMusicFile.getSampleCount()];
+        mManager.readDataCached(dataBuffer, 0, dataBuffer.length);
+
+        return dataBuffer;
+    }
+
+    /**
+     * @return data channel of the whole song, rendered beat by beat
+     */
+    private short[] readSerial() {
+
+        short[] dataBuffer = new short[(int) mMusicFile.getSampleCount()];
+        Arrays.fill(dataBuffer, (short) -DanceBotConfiguration.DATA_LEVEL);
+        mManager.readDataAll(dataBuffer);
+
+        return dataBuffer;
+    }
+}
@@ -15,6 +15,7 @@ import android.widget.SeekBar;
 import android.widget.TextView;
 
 import java.io.File;
+import java.io.IOException;
 
 import ch.ethz.asl.dancebots.danceboteditor.dialogs.StickyOkDialog;
 import ch.ethz.asl.dancebots.danceboteditor.handlers.SoundManager;
@@ -27,6 +28,7 @@ import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotMusicFile;
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotMusicStream;
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotHelper;
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotProjectFile;
+import ch.ethz.asl.dancebots.danceboteditor.utils.StereoPcmCache;
 import ch.ethz.asl.dancebots.danceboteditor.listener.MusicIntentReceiver;
 import ch.ethz.asl.dancebots.danceboteditor.view.HorizontalRecyclerViews;
 
@@ -45,11 +47,15 @@ public class EditorActivity extends Activity {
     public static final String INTENT_EDITOR_LOAD_FILE_NAME = "EDITOR_FILE_NAME";
     public static final String INTENT_EDITOR_LOAD_FILE_PATH = "EDITOR_FILE_PATH";
 
+    private static final String PCM_CACHE_FILE_NAME = "stream_cache.pcm";
+    private static final String STREAM_METRICS_FILE_NAME = "stream_metrics.txt";
+
     private DanceBotEditorManager mProjectManager;
     private HorizontalRecyclerViews mBeatElementViews;
     private DanceBotMusicFile mMusicFile;
     private DanceBotMediaPlayer mMediaPlayer;
     private DanceBotMusicStream mMediaStream;
+    private StereoPcmCache mPcmCache;
     private SeekBar mSeekBar;
     private MediaPlayerListener mMediaPlayerListener;
     private MusicIntentReceiver mMusicIntentReceiver;
@@ -142,6 +148,8 @@ public class EditorActivity extends Activity {
         // Initialize media stream player
         mMediaStream = new DanceBotMusicStream(mMusicFile);
         mMediaStream.setStreamSource(mProjectManager.getChoreoManager());
+        mPcmCache = new StereoPcmCache(new File(getCacheDir(), PCM_CACHE_FILE_NAME), mProjectManager.getPcmStore());
+        mMediaStream.setPcmCache(mPcmCache);
         mMediaStream.setMediaPlayerSeekBar((SeekBar) findViewById(R.id.seekbar_media_player));
         mMediaStream.setPlayButton((ImageButton) findViewById(R.id.btn_stream_player));
 
@@ -232,6 +240,14 @@ public class EditorActivity extends Activity {
 
         // Release media player resources
         mMediaPlayer.cleanUp();
+        mPcmCache.release();
+
+        // Keep the stream metrics of this session for later inspection
+        try {
+            mMediaStream.getMetrics().writeTo(new File(getCacheDir(), STREAM_METRICS_FILE_NAME));
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "could not write stream metrics: " + e.getMessage());
+        }
 
         // Cleanup project manager, when activity will be shutdown
         mProjectManager.cleanUp();
@@ -344,6 +360,38 @@ public class EditorActivity extends Activity {
 
                 return true;
 
+            case R.id.editor_action_loop_selection:
+
+                if (item.isChecked()) {
+                    item.setChecked(false);
+                    mMediaStream.clearLoop();
+                    return true;
+                }
+
+                // Loop the beats selected in the led view
+                int[] beatRange = mBeatElementViews.getSelectedBeatRange();
+
+                if (beatRange == null) {
+                    new StickyOkDialog()
+                            .setTitle(getString(R.string.menu_editor_txt_loop_selection))
+                            .setMessage(getString(R.string.txt_loop_no_selection))
+                            .show(getFragmentManager(), "dialog_ok");
+                    return true;
+                }
+
+                mMediaStream.setLoop(beatRange[0], beatRange[1]);
+                item.setChecked(true);
+
+                return true;
+
+            case R.id.editor_action_stream_data_only:
+
+                // Stream only the robot data, the music is played by a separate sound system
+                item.setChecked(!item.isChecked());
+                mMediaStream.setDataOnly(item.isChecked());
+
+                return true;
+
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -98,6 +98,27 @@ public class BeatElementAdapter<T extends BeatElement> extends DragSelectRecycle
         }
     }
 
+    /**
+     * @return first and last index of the drag selection, or null if nothing is selected
+     */
+    public int[] getSelectedRange() {
+
+        Integer[] selectedIndices = getSelectedIndices();
+
+        if (selectedIndices == null || selectedIndices.length == 0) {
+            return null;
+        }
+
+        int first = selectedIndices[0];
+        int last = selectedIndices[0];
+        for (int index : selectedIndices) {
+            first = Math.min(first, index);
+            last = Math.max(last, index);
+        }
+
+        return new int[] {first, last};
+    }
+
     public void setTouchClickListener(TouchClickListener clickListener) {
         this.mCallback = clickListener;
     }
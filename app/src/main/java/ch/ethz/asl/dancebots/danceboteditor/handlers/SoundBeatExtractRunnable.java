@@ -9,6 +9,7 @@ import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 
 import ch.ethz.asl.dancebots.danceboteditor.utils.BeatExtractor;
+import ch.ethz.asl.dancebots.danceboteditor.utils.PcmStore;
 
 /**
  * Created by andrin on 14.11.15.
@@ -66,10 +67,10 @@ public class SoundBeatExtractRunnable implements Runnable {
         void setBeatExtractionRunnableStatus(int threadId, int beats);
 
         /**
-         * Returns the pointer to the sound file handle
-         * @return The file handle from the decoded sound file
+         * Borrows the decoded sound file for the current Thread, it has to be released afterwards
+         * @return The decoded sound file, null if it was released already
          */
-        long getSoundFileHandle();
+        PcmStore.Entry acquirePcm();
 
         /**
          * Returns the number of samples of the sound file
@@ -121,8 +122,9 @@ public class SoundBeatExtractRunnable implements Runnable {
     @Override
     public void run() {
 
-        // Get the file handle pointer to the native data structure
-        mSoundFileHandle = mSoundTask.getSoundFileHandle();
+        // Borrow the decoded sound file and get the handle pointer to the native data structure
+        PcmStore.Entry pcm = mSoundTask.acquirePcm();
+        mSoundFileHandle = (pcm != null) ? pcm.getHandle() : 0;
 
         // Retrieve number of samples of decoded music file
         long numSamples = mSoundTask.getNumSamples();
@@ -132,8 +134,8 @@ public class SoundBeatExtractRunnable implements Runnable {
 
         try {
             // Before continuing, checks to see that the Thread hasn't been
-            // interrupted
-            if (Thread.interrupted()) {
+            // interrupted and the sound file wasn't released meanwhile
+            if (Thread.interrupted() || pcm == null) {
 
                 throw new InterruptedException();
             }
@@ -181,10 +183,11 @@ public class SoundBeatExtractRunnable implements Runnable {
             mSoundTask.setBeatBuffer(mThreadId, mBeatBuffer);
             Log.v(LOG_TAG, "BeatExtractionThread thread#" + mThreadId + ": updates runnable status and sets beat buffer.");
 
-            // Close mp3 file
-            // TODO: I STILL NEED IT, DON'T I?
-            //beatExtractor.close(mSoundFileHandle);
-            //Log.v(LOG_TAG, "BeatExtractionThread thread#" + mThreadId + ": closes mp3 file.");
+            // Give the decoded sound file back, it is freed when the last user released it
+            if (pcm != null) {
+                pcm.release();
+                Log.v(LOG_TAG, "BeatExtractionThread thread#" + mThreadId + ": releases mp3 file.");
+            }
 
             // In all cases, handle the results
             Log.v(LOG_TAG, "BeatExtractThread thread#" + mThreadId + ": finished.");
@@ -4,8 +4,7 @@ import android.util.Log;
 
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotEditorManager;
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotMusicFile;
-import ch.ethz.asl.dancebots.danceboteditor.utils.Decoder;
-import de.mpg123.MPG123Decoder;
+import ch.ethz.asl.dancebots.danceboteditor.utils.PcmStore;
 
 /**
  * Created by andrin on 14.11.15.
@@ -38,10 +37,10 @@ public class SoundDecodeRunnable implements Runnable {
         void setDecodeThread(Thread currentThread);
 
         /**
-         * Sets the pointer to the native sound file object
-         * @param soundFileHandler
+         * Sets the decoded song, the task releases it after the beat extraction
+         * @param pcm
          */
-        void setSoundFileHandler(long soundFileHandler);
+        void setPcm(PcmStore.Entry pcm);
 
         /**
          * Handle the state of the decoding process
@@ -96,41 +95,30 @@ public class SoundDecodeRunnable implements Runnable {
             // Get the current dance bot editor music file
             DanceBotMusicFile musicFile = mSoundTask.getDanceBotMusicFile();
 
-            // Create and initialize decoder object
-            Decoder mp3Decoder = new MPG123Decoder();
-
-            // Open a music file path
-            Log.v(LOG_TAG, "opening mp3 file...");
-            mp3Decoder.openFile(musicFile.getSongPath());
-
-            // Decode the opened music file, if no error occurred
+            // Borrow the decoded music file from the pcm store, it is decoded or loaded from the
+            // pcm cache if no one else uses it
             Log.v(LOG_TAG, "start decoding...");
-            int result = mp3Decoder.decode();
+            PcmStore.Entry pcm = DanceBotEditorManager.getInstance().getPcmStore().acquire(musicFile.getSongPath());
 
             // Check result of the decoded music file
-            if (result <= 0) {
+            if (pcm == null) {
 
                 Log.v(LOG_TAG, "Error: Decoding failed.");
 
-                mp3Decoder.close();
-
                 // Handle the state of the decoding Thread
                 mSoundTask.handleDecodeState(DECODE_STATE_FAILED);
 
             } else {
 
-                // Get native sound file handle pointer to the decoded sound file
-                long soundFileHandle = mp3Decoder.getHandle();
-
-                // Set the handle in the SoundTask instance, such that other Threads can access it
-                mSoundTask.setSoundFileHandler(soundFileHandle);
+                // Set the decoded song in the SoundTask instance, such that other Threads can access it
+                mSoundTask.setPcm(pcm);
 
                 // Extract sample rate from decoded file
-                musicFile.setSampleRate(mp3Decoder.getSampleRate());
+                musicFile.setSampleRate(pcm.getSampleRate());
                 Log.v(LOG_TAG, "sample rate: " + musicFile.getSampleRate());
 
                 // Get the total number of samples, which were decoded
-                musicFile.setTotalNumberOfSamples(mp3Decoder.getNumberOfSamples());
+                musicFile.setTotalNumberOfSamples(pcm.getNumberOfSamples());
                 Log.v(LOG_TAG, "total number of samples: " + musicFile.getSampleCount());
 
                 /**
@@ -8,16 +8,14 @@ import android.util.Log;
 import net.lame.LameEncoder;
 
 import java.io.File;
-import java.util.Arrays;
+import java.nio.ShortBuffer;
 
 import ch.ethz.asl.dancebots.danceboteditor.dialogs.StickyOkDialog;
 import ch.ethz.asl.dancebots.danceboteditor.model.ChoreographyManager;
-import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotConfiguration;
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotEditorManager;
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotMusicFile;
-import ch.ethz.asl.dancebots.danceboteditor.utils.Decoder;
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotHelper;
-import de.mpg123.MPG123Decoder;
+import ch.ethz.asl.dancebots.danceboteditor.utils.PcmStore;
 
 /**
  * Created by andrin on 29.11.15.
@@ -38,10 +36,10 @@ public class SoundEncodeRunnable implements Runnable {
     // Defines a field that contains the calling object of type SoundTask.
     private final TaskRunnableEncodeMethods mSoundTask;
     private LameEncoder mEncoder;
+    private PcmStore.Entry mPcm;
 
     private long t1,t2;
     private short[] mPcmData;
-    private short[] mPcmMusic;
 
     /**
      * An interface that defines methods that SoundTask implements. An instance of
@@ -106,22 +104,24 @@ public class SoundEncodeRunnable implements Runnable {
 
             long numSamples = mSoundTask.getMusicFile().getSampleCount();
 
-            // Initialize music and data buffers
-            mPcmMusic = new short[(int)numSamples];
-            mPcmData = new short[(int)numSamples];
-
             Log.d(LOG_TAG, "pcm data size: " + 2 * numSamples + " bytes");
 
-            // Initialize
-            Arrays.fill(mPcmData, (short) -DanceBotConfiguration.DATA_LEVEL);
+            // Prepare data channel, only beats changed since the last export are rendered again
+            mPcmData = new short[(int) numSamples];
+            numSamples = mSoundTask.getChoreographyManager().readDataCached(mPcmData, 0, (int) numSamples);
+            mSoundTask.getChoreographyManager().logMessageCacheStatistics();
+
+            // Borrow the decoded music from the pcm store, the encoder reads the pcm in place
+            mPcm = DanceBotEditorManager.getInstance().getPcmStore().acquire(musicFile.getSongPath());
 
-            // Prepare data channel and music channel
-            mSoundTask.getChoreographyManager().readDataAll(mPcmData);
+            if (mPcm == null) {
+                Log.d(LOG_TAG, "Error: decoding failed.");
+                mSoundTask.handleEncodeState(ENCODE_STATE_FAILED);
+                return;
+            }
 
-            Decoder mp3Decoder = new MPG123Decoder();
-            mp3Decoder.openFile(musicFile.getSongPath());
-            mp3Decoder.decode();
-            mp3Decoder.transfer(mPcmMusic);
+            ShortBuffer pcmMusic = mPcm.getPcm();
+            numSamples = Math.min(numSamples, Math.min(pcmMusic.capacity(), mPcmData.length));
 
             // Create new mp3 buffer and specify size in bytes
             // Calculate buffer size in bytes
@@ -130,7 +130,7 @@ public class SoundEncodeRunnable implements Runnable {
 
             // Encode the audio and data buffer to a new mp3 file
             mEncoder = new LameEncoder.Builder(SAMPLE_RATE, CHANNEL_COUNT, SAMPLE_RATE, BIT_RATE).create();
-            mEncoder.encode(mPcmMusic, mPcmData, (int) numSamples, mp3buf);
+            mEncoder.encode(pcmMusic, mPcmData, (int) numSamples, mp3buf);
             mEncoder.flush(mp3buf);
 
             // Save raw audio buffer to a new file
@@ -165,8 +165,12 @@ public class SoundEncodeRunnable implements Runnable {
             if (mEncoder != null) {
                 mEncoder.close();
             }
+            // Give the decoded music back, after the encoder is done with it
+            if (mPcm != null) {
+                mPcm.release();
+                mPcm = null;
+            }
             mPcmData = null;
-            mPcmMusic = null;
 
             t2 = System.currentTimeMillis();
             Log.v(LOG_TAG, "Elapsed time for encoding: " + (t2 - t1) / 1000 + "s");
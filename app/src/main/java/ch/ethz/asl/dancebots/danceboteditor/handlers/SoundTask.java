@@ -14,6 +14,7 @@ import ch.ethz.asl.dancebots.danceboteditor.utils.BeatExtractor;
 import ch.ethz.asl.dancebots.danceboteditor.model.ChoreographyManager;
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotEditorManager;
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotMusicFile;
+import ch.ethz.asl.dancebots.danceboteditor.utils.PcmStore;
 
 /**
  * Created by andrin on 14.11.15.
@@ -42,7 +43,8 @@ public class SoundTask implements
     // The ChoreographyManager, which keeps all relevant information about the selected choreography
     private ChoreographyManager mChoreoManager;
 
-    // The width and height of the decoded image
+    // The decoded song, borrowed from the pcm store until the beat extraction finished
+    private PcmStore.Entry mPcm;
     private long mSoundFileHandler;
 
     /*
@@ -318,8 +320,20 @@ public class SoundTask implements
     }
 
     @Override
-    public void setSoundFileHandler(long soundFileHandler) {
-        mSoundFileHandler = soundFileHandler;
+    public void setPcm(PcmStore.Entry pcm) {
+        mPcm = pcm;
+        mSoundFileHandler = pcm.getHandle();
+    }
+
+    /**
+     * Give the decoded song back to the pcm store, the beat extraction threads hold their own
+     * references while they are running
+     */
+    private void releasePcm() {
+        if (mPcm != null) {
+            mPcm.release();
+            mPcm = null;
+        }
     }
 
     /**
@@ -358,7 +372,11 @@ public class SoundTask implements
              * When decoding is completed, the multi-threaded beat extraction starts.
              * The current (decoder Thread) waits spinning for the beat extraction to complete.
              */
-            postProcessExtractedBeats();
+            try {
+                postProcessExtractedBeats();
+            } finally {
+                releasePcm();
+            }
 
             // Handle global SoundManager state
             handleState(SoundManager.TASK_COMPLETE);
@@ -390,8 +408,9 @@ public class SoundTask implements
     }
 
     @Override
-    public long getSoundFileHandle() {
-        return mSoundFileHandler;
+    public PcmStore.Entry acquirePcm() {
+        PcmStore.Entry pcm = mPcm;
+        return (pcm != null) ? pcm.retain() : null;
     }
 
     @Override
@@ -4,6 +4,7 @@ import android.util.Log;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.UUID;
 
@@ -20,6 +21,10 @@ public class Choreography<T extends BeatElement> implements Serializable {
     private int mNumBeats;
     // Hash map that stores unique ids with the corresponding dance sequence
     private HashMap<UUID, DanceSequence<T>> mDanceSequences;
+    // Beats that changed since the last poll, they need to be rendered again
+    private transient BitSet mDirtyBeats;
+    // Incremented with every change, to detect outdated render plans
+    private transient volatile int mVersion;
 
     public Choreography(ArrayList<T> elems) {
         mBeatElements = elems;
@@ -106,6 +111,9 @@ public class Choreography<T extends BeatElement> implements Serializable {
             }
 
         }
+
+        // All elements of the new dance sequence changed
+        markDirtyBeats(startIdx, startIdx + length);
     }
 
     /**
@@ -173,6 +181,9 @@ public class Choreography<T extends BeatElement> implements Serializable {
         for (int i = startIdx; i < endIdx; ++i) {
             mBeatElements.get(i).setDefaultProperties();
         }
+
+        // All elements of the removed dance sequence changed
+        markDirtyBeats(startIdx, endIdx);
     }
 
 
@@ -203,6 +214,45 @@ public class Choreography<T extends BeatElement> implements Serializable {
         return ((elem.getDanceSequenceId() == null) || (elem.getDanceSequenceId() == choreoID));
     }
 
+    /**
+     * Mark a range of beats as changed
+     *
+     * @param startIdx first changed beat
+     * @param endIdx end index does not belong to the changed range anymore
+     */
+    private synchronized void markDirtyBeats(int startIdx, int endIdx) {
+
+        if (mDirtyBeats == null) {
+            mDirtyBeats = new BitSet(mNumBeats);
+        }
+
+        if (startIdx < endIdx) {
+            mDirtyBeats.set(startIdx, Math.min(endIdx, mNumBeats));
+        }
+
+        mVersion++;
+    }
+
+    /**
+     * @return version of the choreography, it changes with every change of a dance sequence
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Return all beats which changed since the last call and reset them
+     *
+     * @return changed beats
+     */
+    public synchronized BitSet pollDirtyBeats() {
+
+        BitSet dirtyBeats = (mDirtyBeats != null) ? mDirtyBeats : new BitSet(mNumBeats);
+        mDirtyBeats = new BitSet(mNumBeats);
+
+        return dirtyBeats;
+    }
+
     /**
      * @return BeatElement list
      */
@@ -1,22 +1,35 @@
 package ch.ethz.asl.dancebots.danceboteditor.model;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ch.ethz.asl.dancebots.danceboteditor.R;
 import ch.ethz.asl.dancebots.danceboteditor.adapters.BeatElementAdapter;
 import ch.ethz.asl.dancebots.danceboteditor.ui.FloatSelectionMenu;
 import ch.ethz.asl.dancebots.danceboteditor.ui.IntegerSelectionMenu;
 import ch.ethz.asl.dancebots.danceboteditor.ui.LedTypeSelectionMenu;
 import ch.ethz.asl.dancebots.danceboteditor.ui.MotorTypeSelectionMenu;
+import ch.ethz.asl.dancebots.danceboteditor.utils.CachedDataChannelModulator;
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotConfiguration;
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotError;
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotMusicFile;
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotMusicStream;
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotProjectFile;
-import ch.ethz.asl.dancebots.danceboteditor.view.HorizontalRecyclerViews;
+import ch.ethz.asl.dancebots.danceboteditor.utils.TableDataChannelModulator;
+import ch.ethz.asl.dancebots.danceboteditor.utils.DataChannelEdgeList;
+import ch.ethz.asl.dancebots.danceboteditor.utils.DataChannelModulator;
+import ch.ethz.asl.dancebots.danceboteditor.utils.DataChannelTimings;
+import ch.ethz.asl.dancebots.danceboteditor.utils.ReferenceDataChannelModulator;
 
 /**
  * Created by andrin on 31.08.15.
@@ -25,6 +38,12 @@ public class ChoreographyManager implements DanceBotMusicStream.StreamPlayback {
 
     private static final String LOG_TAG = "CHOREOGRAPHY_MANAGER";
 
+    // Minimum number of beats rendered by a single task of the parallel renderer
+    private static final int MIN_BEATS_PER_RENDER_TASK = 8;
+
+    // Version of a data cache which was not rendered from a published choreography snapshot
+    private static final long NO_DATA_CACHE_VERSION = -1;
+
     private final DanceBotMusicFile mMusicFile;
 
     private Context mContext;
@@ -37,16 +56,54 @@ public class ChoreographyManager implements DanceBotMusicStream.StreamPlayback {
     // Data source fields
     private ArrayList<MotorBeatElement> mMotorElements;
     private ArrayList<LedBeatElement> mLedElements;
-    private short[] mDataBuffer;
     private short mLastSampleLevel;
 
-    private int mNumSamplesReset;
-    private int mNumSamplesOne;
-    private int mNumSamplesZero;
+    // Level of the last sample of the stream, only used by the stream thread. It follows the
+    // data cache while the stream copies from it.
+    private short mStreamLevel = DanceBotConfiguration.DATA_LEVEL;
 
     private int mSampleRate;
     private int mNumBeats;
 
+    // Wire format of the data channel and the modulator encoding it, replaced as a whole
+    private final AtomicReference<DataChannelConfig> mDataChannelConfig =
+            new AtomicReference<>(new DataChannelConfig(DataChannelTimings.DEFAULT, false, null, 0));
+
+    // Message writer of every rendering thread, the stream thread and the render workers
+    private final ThreadLocal<CachedDataChannelModulator> mMessageWriters = new ThreadLocal<>();
+
+    // Hit and miss counters of the message caches, merged once per rendered range
+    private final AtomicLong mMessageCacheHits = new AtomicLong();
+    private final AtomicLong mMessageCacheMisses = new AtomicLong();
+
+    /*
+     * Rendered data channel of the whole song. Only beats which changed since the last render
+     * are rendered again. For every beat the level before the beat and the number of message
+     * samples are kept, such that a changed level can be propagated without rendering.
+     */
+    private short[] mDataCache;
+    private short[] mDataCacheBeatLevels;
+    private int[] mDataCacheBeatLengths;
+
+    // Choreography version the data cache was rendered from
+    private long mDataCacheVersion = NO_DATA_CACHE_VERSION;
+
+    /*
+     * The stream copies from the data cache without locking. The epoch is odd while the data
+     * cache is written and is incremented again afterwards. The stream discards its copy if the
+     * epoch was odd or changed meanwhile, and renders the chunk itself.
+     */
+    private final AtomicInteger mDataCacheEpoch = new AtomicInteger();
+
+    /*
+     * Compiled choreography, an immutable snapshot published by the editing thread after every
+     * edit. The stream keeps its snapshot until the next beat, such that a beat is never
+     * rendered from two different choreographies.
+     */
+    private final AtomicReference<ChoreographyRenderPlan> mPublishedPlan = new AtomicReference<>();
+    private ChoreographyRenderPlan mStreamPlan;
+    private int mStreamPlanBeat = -1;
+
     /**
      * An interface that defines methods that SoundTask implements. An instance of
      * SoundTask passes itself to an SoundDecodeRunnable instance through the
@@ -70,7 +127,7 @@ public class ChoreographyManager implements DanceBotMusicStream.StreamPlayback {
         void setMotorElementAdapter(BeatElementAdapter motorAdapter);
     }
 
-    public ChoreographyManager(Context context, HorizontalRecyclerViews beatViews, DanceBotMusicFile musicFile) {
+    public ChoreographyManager(Context context, ChoreographyViewManager beatViews, DanceBotMusicFile musicFile) {
 
         // Set application context, to load constant colors and strings
         mContext = context;
@@ -89,9 +146,11 @@ public class ChoreographyManager implements DanceBotMusicStream.StreamPlayback {
         mViewManager.setMotorElementAdapter(new BeatElementAdapter<>(mContext, motorElements, mMotorChoreography));
 
         mMusicFile = musicFile;
+
+        loadDataChannelConfig();
     }
 
-    public ChoreographyManager(Context context, HorizontalRecyclerViews beatViews, DanceBotProjectFile projectFile) {
+    public ChoreographyManager(Context context, ChoreographyViewManager beatViews, DanceBotProjectFile projectFile) {
         mContext = context;
         mViewManager = beatViews;
 
@@ -105,6 +164,27 @@ public class ChoreographyManager implements DanceBotMusicStream.StreamPlayback {
         mViewManager.setMotorElementAdapter(new BeatElementAdapter<>(mContext, motorElements, mMotorChoreography));
 
         mMusicFile = projectFile.loadMusicFile();
+
+        loadDataChannelConfig();
+    }
+
+    /**
+     * Apply the data channel settings of the app resources
+     */
+    private void loadDataChannelConfig() {
+
+        Resources resources = mContext.getResources();
+
+        DataChannelTimings timings = new DataChannelTimings(
+                resources.getInteger(R.integer.data_bit_length_reset),
+                resources.getInteger(R.integer.data_bit_length_one),
+                resources.getInteger(R.integer.data_bit_length_zero));
+
+        if (resources.getBoolean(R.bool.data_channel_reference_modulator)) {
+            setDataChannelModulator(new ReferenceDataChannelModulator(timings, mMusicFile.getSampleRate()));
+        } else {
+            setDataChannelTimings(timings);
+        }
     }
 
     public void processPositiveClick(
@@ -168,6 +248,9 @@ public class ChoreographyManager implements DanceBotMusicStream.StreamPlayback {
 
             }
         }
+
+        // A running stream picks up the edit at its next beat
+        publishChoreography();
     }
 
 
@@ -184,9 +267,25 @@ public class ChoreographyManager implements DanceBotMusicStream.StreamPlayback {
 
                 mMotorChoreography.removeDanceSequence((MotorBeatElement) selectedBeatElem);
             }
+
+            // A running stream picks up the edit at its next beat
+            publishChoreography();
         }
     }
 
+    /**
+     * Compile the current choreography into an immutable snapshot and publish it to the stream.
+     * Must be called by the thread which edits the choreography, after the edit is complete.
+     */
+    public void publishChoreography() {
+
+        // Read the versions first, an edit during compilation leads to another publication
+        int motorVersion = mMotorChoreography.getVersion();
+        int ledVersion = mLedChoreography.getVersion();
+
+        mPublishedPlan.set(new ChoreographyRenderPlan(mMotorChoreography.getBeatElements(), mLedChoreography.getBeatElements(), motorVersion, ledVersion));
+    }
+
 
     /**
      * Initialize led beat elements after successfully extracting all beats
@@ -248,26 +347,80 @@ public class ChoreographyManager implements DanceBotMusicStream.StreamPlayback {
         // Get the detected sample rate of decoding
         mSampleRate = mMusicFile.getSampleRate();
 
-        // Compute the nominal sampling scale
-        float sampleScale = mSampleRate / DanceBotConfiguration.SAMPLE_FREQUENCY_NOMINAL;
+        // Create the modulator once per sample rate, a setting published meanwhile wins
+        DataChannelConfig config = mDataChannelConfig.get();
+        if (config.modulator == null || config.modulator.getSampleRate() != mSampleRate) {
+            mDataChannelConfig.compareAndSet(config, config.forSampleRate(mSampleRate));
+        }
+
+        // Keep a state of the last sample written
+        mLastSampleLevel = DanceBotConfiguration.DATA_LEVEL;
+
+        // Publish edits which were not published by the editing thread
+        ChoreographyRenderPlan plan = mPublishedPlan.get();
+        if (plan == null || !plan.isCompiledFrom(mMotorChoreography.getVersion(), mLedChoreography.getVersion())) {
+            publishChoreography();
+        }
+    }
+
+    /**
+     * The stream continues at another position, e.g. after a seek. The next message starts
+     * from the initial level again.
+     */
+    @Override
+    public void resetDataStream() {
+        mStreamLevel = DanceBotConfiguration.DATA_LEVEL;
+        mStreamPlan = null;
+    }
+
+    /**
+     * The choreography versions only increase, thus their sum changes with every edit
+     *
+     * @return version of the data channel
+     */
+    @Override
+    public long getDataVersion() {
+        return (long) mMotorChoreography.getVersion() + mLedChoreography.getVersion() + mDataChannelConfig.get().version;
+    }
 
-        // Round to the closest Integer
-        mNumSamplesZero = Math.round(sampleScale * DanceBotConfiguration.BIT_LENGTH_ZERO_NOMINAL);
-        mNumSamplesOne = Math.round(sampleScale * DanceBotConfiguration.BIT_LENGTH_ONE_NOMINAL);
-        mNumSamplesReset = Math.round(sampleScale * DanceBotConfiguration.BIT_LENGTH_RESET_NOMINAL);
+    /**
+     * Set the bit lengths of the data channel. The modulator for the new timings is created
+     * before the configuration is published, a running stream switches with its next chunk. The
+     * rendered data channel is released.
+     *
+     * @param timings bit lengths of the wire format
+     */
+    public synchronized void setDataChannelTimings(DataChannelTimings timings) {
 
-        // Define the maximum number of bits in a robot message
-        int numBitsInMsg = 2 * (DanceBotConfiguration.NUM_BIT_MOTOR + 1) + 8;
+        DataChannelConfig config = mDataChannelConfig.get();
+        config = new DataChannelConfig(timings, config.isReferenceModulator, null, config.version + 1);
 
-        // Define the maximum number of samples in a robot message
-        int maxNumSamplesInMsg = numBitsInMsg * mNumSamplesOne + mNumSamplesReset;
+        // Without a decoded song, the modulator is created by prepareDataBuffer
+        int sampleRate = mMusicFile.getSampleRate();
+        if (sampleRate > 0) {
+            config = config.forSampleRate(sampleRate);
+        }
 
-        // Initialize a new data buffer, which stores the current calculated message
-        mDataBuffer = new short[maxNumSamplesInMsg];
+        mDataChannelConfig.set(config);
 
-        // Keep a state of the last sample written
-        mLastSampleLevel = DanceBotConfiguration.DATA_LEVEL;
+        releaseDataCache();
+    }
 
+    /**
+     * Set the modulator which encodes the messages of the data channel. A modulator for another
+     * sample rate than the decoded one is replaced by a table modulator with the same timings,
+     * respectively by a reference modulator if it is not table driven.
+     *
+     * @param modulator data channel modulator
+     */
+    public synchronized void setDataChannelModulator(DataChannelModulator modulator) {
+
+        DataChannelConfig config = mDataChannelConfig.get();
+        boolean isReferenceModulator = !(modulator instanceof TableDataChannelModulator);
+
+        mDataChannelConfig.set(new DataChannelConfig(modulator.getTimings(), isReferenceModulator, modulator, config.version + 1));
+
+        releaseDataCache();
     }
 
     /**
@@ -275,73 +428,445 @@ public class ChoreographyManager implements DanceBotMusicStream.StreamPlayback {
      * to PCM and write it into the output buffer.
      *
      * @param outputBuffer output buffer that stores the PCM encoded dance sequence data
-     * @return return number of samples written
+     * @return sample position up to which the output buffer was rendered
      */
     public int readDataAll(short[] outputBuffer) {
 
         // Prepare data buffer related information
         prepareDataBuffer();
 
-        int samplePos = 0;
+        ChoreographyRenderPlan plan = getRenderPlan();
+        CachedDataChannelModulator writer = getMessageWriter(mDataChannelConfig.get());
 
         // Iterate over all detected beats in the song (skipping the first (why?))
         for (int i = 1; i < mNumBeats - 1; ++i) {
+            mLastSampleLevel = renderBeat(plan, writer, i, outputBuffer, mLastSampleLevel, null);
+        }
 
-            // Get the corresponding MotorBeatElement and LedBeatElement
-            MotorBeatElement motorElement = mMotorElements.get(i);
-            LedBeatElement ledElement = mLedElements.get(i);
+        mergeMessageCacheCounters(writer);
 
-            // Get the start and end sample for the current selected beat
-            long startSamplePosition = mMotorElements.get(i).getSamplePosition();
-            long endSamplePosition = mMotorElements.get(i + 1).getSamplePosition();
+        return getRenderedSampleCount();
+    }
 
-            // Compute the total number of samples to process for the current beat
-            int samplesToProcess = (int) (endSamplePosition - startSamplePosition);
+    /**
+     * Render all beats in parallel into the output buffer. Every message inverts the level, thus
+     * the start level of a beat only depends on the parity of the number of messages in all
+     * previous beats. As the length of a message depends on its payload, this number is only
+     * known after rendering. All beats are rendered once starting from DATA_LEVEL, the start
+     * levels are resolved by a serial prefix pass and the messages of every beat which starts
+     * from the other level are inverted in place. The output is identical to readDataAll.
+     *
+     * @param plan compiled choreography to render
+     * @param config data channel configuration to render with
+     * @param outputBuffer output buffer that stores the PCM encoded dance sequence data
+     * @param beatLevels filled with the level before every beat, the last entry holds the level
+     *                   after the last rendered beat
+     * @param beatLengths filled with the number of message samples of every beat
+     */
+    private void renderParallel(ChoreographyRenderPlan plan, DataChannelConfig config, short[] outputBuffer, short[] beatLevels, int[] beatLengths) {
 
-            // Initialize the (current) relative sample start position to zero
-            samplePos = 0;
+        if (mNumBeats < 3) {
+            return;
+        }
 
-            // Iterate while not all samples at the current beat are processed
-            while (samplePos < samplesToProcess) {
+        ForkJoinPool pool = RenderPool.INSTANCE;
 
-                // Get relative beat in percent
-                float relativeBeat = ((float) samplePos / (float) samplesToProcess);
+        // Choose a split size, such that every thread gets a few ranges to balance the load
+        int splitSize = Math.max(MIN_BEATS_PER_RENDER_TASK, (mNumBeats - 2) / (4 * pool.getParallelism()));
+
+        // Parallel pass: render every beat starting from DATA_LEVEL, beatLevels first only holds
+        // the level after the beat
+        pool.invoke(new BeatRenderTask(plan, config, 1, mNumBeats - 1, splitSize, outputBuffer, beatLevels, beatLengths, false));
+
+        // Serial prefix pass: resolve the start level of every beat
+        short level = mLastSampleLevel;
+        for (int i = 1; i < mNumBeats - 1; ++i) {
+            boolean inverts = (beatLevels[i] != DanceBotConfiguration.DATA_LEVEL);
+            beatLevels[i] = level;
+            if (inverts) {
+                level *= -1;
+            }
+        }
+        beatLevels[mNumBeats - 1] = level;
+        mLastSampleLevel = level;
+
+        // Parallel pass: invert the messages of the beats which start from the other level
+        pool.invoke(new BeatRenderTask(plan, config, 1, mNumBeats - 1, splitSize, outputBuffer, beatLevels, beatLengths, true));
+    }
+
+    /**
+     * Fork/join pool of the parallel renderer, shared by all managers and created on first use.
+     * Its worker threads terminate when idle.
+     */
+    private static final class RenderPool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Fork/join task that processes a range of beats. The render pass writes every beat starting
+     * from DATA_LEVEL and stores the level after the beat in beatLevels. The invert pass negates
+     * the message samples of every beat whose start level in beatLevels is not DATA_LEVEL.
+     */
+    private class BeatRenderTask extends RecursiveAction {
+
+        private final ChoreographyRenderPlan mPlan;
+        private final DataChannelConfig mConfig;
+        private final int mStartBeat;
+        private final int mEndBeat;
+        private final int mSplitSize;
+        private final short[] mOutputBuffer;
+        private final short[] mBeatLevels;
+        private final int[] mBeatLengths;
+        private final boolean mInvert;
+
+        BeatRenderTask(ChoreographyRenderPlan plan, DataChannelConfig config, int startBeat, int endBeat, int splitSize, short[] outputBuffer, short[] beatLevels, int[] beatLengths, boolean invert) {
+            mPlan = plan;
+            mConfig = config;
+            mStartBeat = startBeat;
+            mEndBeat = endBeat;
+            mSplitSize = splitSize;
+            mOutputBuffer = outputBuffer;
+            mBeatLevels = beatLevels;
+            mBeatLengths = beatLengths;
+            mInvert = invert;
+        }
+
+        @Override
+        protected void compute() {
 
-                // Initialize velocities and led
-                short vLeft = 0;
-                short vRight = 0;
-                byte led = 0;
+            if (mEndBeat - mStartBeat <= mSplitSize) {
 
-                // Check the current motor element is different from the DEFAULT state
-                if (motorElement.getMotionType() != MotorType.DEFAULT) {
-                    vLeft = (short) motorElement.getVelocityLeft(relativeBeat);
-                    vRight = (short) motorElement.getVelocityRight(relativeBeat);
+                if (mInvert) {
+                    invertBeats();
+                } else {
+                    renderBeats();
                 }
 
-                // Check the current led element is different from the DEFAULT state
-                if (ledElement.getMotionType() != LedType.DEFAULT) {
-                    led = ledElement.getLedBytes(relativeBeat);
+            } else {
+
+                int midBeat = (mStartBeat + mEndBeat) >>> 1;
+                invokeAll(
+                        new BeatRenderTask(mPlan, mConfig, mStartBeat, midBeat, mSplitSize, mOutputBuffer, mBeatLevels, mBeatLengths, mInvert),
+                        new BeatRenderTask(mPlan, mConfig, midBeat, mEndBeat, mSplitSize, mOutputBuffer, mBeatLevels, mBeatLengths, mInvert));
+            }
+        }
+
+        private void renderBeats() {
+
+            CachedDataChannelModulator writer = getMessageWriter(mConfig);
+
+            for (int i = mStartBeat; i < mEndBeat; ++i) {
+                mBeatLevels[i] = renderBeat(mPlan, writer, i, mOutputBuffer, DanceBotConfiguration.DATA_LEVEL, mBeatLengths);
+            }
+
+            mergeMessageCacheCounters(writer);
+        }
+
+        private void invertBeats() {
+
+            for (int i = mStartBeat; i < mEndBeat; ++i) {
+
+                if (mBeatLevels[i] == DanceBotConfiguration.DATA_LEVEL) {
+                    continue;
                 }
 
-                int numSamplesInMsg = calculateMessage(mDataBuffer, vLeft, vRight, led, mLastSampleLevel);
+                int startSample = mPlan.getStartSample(i);
+                for (int j = startSample; j < startSample + mBeatLengths[i]; ++j) {
+                    mOutputBuffer[j] *= -1;
+                }
+            }
+        }
+    }
 
-                // Get last sample level
-                mLastSampleLevel = mDataBuffer[numSamplesInMsg - 1];
+    /**
+     * Render all messages of a single beat. Messages are written consecutively from the start of
+     * the beat, the first message which does not fit into the beat anymore is dropped (but still
+     * inverts the level).
+     *
+     * @param plan compiled choreography to render
+     * @param writer message writer of the rendering thread
+     * @param beat index of the beat to render
+     * @param outputBuffer output buffer that stores the PCM encoded dance sequence data, or null
+     *                     to only compute the level after the beat
+     * @param lastBitLevel last DATA_LEVEL before the beat
+     * @param beatLengths if not null, the number of message samples written is stored at the
+     *                    beat index
+     * @return last DATA_LEVEL after the beat
+     */
+    private short renderBeat(ChoreographyRenderPlan plan, CachedDataChannelModulator writer, int beat, short[] outputBuffer, short lastBitLevel, int[] beatLengths) {
 
-                /*
-                 * If the end of samples to process is not reached, the data buffer is copied to
-                 * pcm buffer
-                 */
-                if (samplePos + numSamplesInMsg < samplesToProcess) {
+        // Get the start and end sample for the current selected beat
+        int startSamplePosition = plan.getStartSample(beat);
+
+        // Compute the total number of samples to process for the current beat
+        int samplesToProcess = plan.getEndSample(beat) - startSamplePosition;
+
+        // Initialize the (current) relative sample start position to zero
+        int samplePos = 0;
+
+        // Iterate while not all samples at the current beat are processed
+        while (samplePos < samplesToProcess) {
+
+            // Get relative beat in percent
+            float relativeBeat = ((float) samplePos / (float) samplesToProcess);
+
+            // Encode velocities and led into a single message payload
+            int payload = plan.computePayload(beat, relativeBeat);
+
+            int numSamplesInMsg = writer.getMessageLength(payload);
 
+            // Every message inverts the level of the last sample
+            short messageLevel = lastBitLevel;
+            lastBitLevel *= -1;
+
+            /*
+             * If the end of samples to process is not reached, the message is written to the
+             * pcm buffer
+             */
+            if (samplePos + numSamplesInMsg < samplesToProcess) {
+
+                if (outputBuffer != null) {
                     // Compute the current absolute sample position and write data to the pcm buffer
-                    int currentSamplePosition = (int) startSamplePosition + samplePos;
+                    int currentSamplePosition = startSamplePosition + samplePos;
                     // Write calculated data message to pcm buffer
-                    writeMessage(outputBuffer, mDataBuffer, currentSamplePosition, numSamplesInMsg);
+                    writeMessage(writer, outputBuffer, currentSamplePosition, numSamplesInMsg, payload, messageLevel);
+                }
+
+            } else {
+
+                // If this happens, all messages have been written for the current beat
+                break;
+            }
+
+            samplePos += numSamplesInMsg;
+        }
+
+        if (beatLengths != null) {
+            beatLengths[beat] = samplePos;
+        }
+
+        return lastBitLevel;
+    }
+
+    /**
+     * @return sample position of the last beat, up to which readDataAll renders
+     */
+    private int getRenderedSampleCount() {
+        if (mNumBeats < 3) {
+            return 0;
+        }
+        return (int) mMotorElements.get(mNumBeats - 1).getSamplePosition();
+    }
+
+    /**
+     * Copy a window of the rendered data channel of the whole song. The first call renders all
+     * beats, later calls only render the beats which were changed in the led or motor
+     * choreography since.
+     *
+     * @param outputBuffer output buffer that stores the PCM encoded dance sequence data
+     * @param startSample sample index of the song at the start of the output buffer
+     * @param numSamples number of samples to copy
+     * @return number of samples copied, less than numSamples at the end of the song
+     */
+    @Override
+    public synchronized int readDataCached(short[] outputBuffer, int startSample, int numSamples) {
+
+        // Read the version before the changed beats, the snapshot contains at least these edits
+        long choreographyVersion = (long) mMotorChoreography.getVersion() + mLedChoreography.getVersion();
+        BitSet dirtyBeats = mMotorChoreography.pollDirtyBeats();
+        dirtyBeats.or(mLedChoreography.pollDirtyBeats());
+
+        // Prepare data buffer related information
+        prepareDataBuffer();
+        ChoreographyRenderPlan plan = getRenderPlan();
+        DataChannelConfig config = mDataChannelConfig.get();
+
+        int numSongSamples = (int) mMusicFile.getSampleCount();
+        boolean isRendered = (mDataCache != null && mDataCache.length == numSongSamples);
+
+        // Only a data channel rendered from exactly the snapshot of the stream is streamed
+        long renderedVersion = (plan.getVersion() == choreographyVersion) ? choreographyVersion : NO_DATA_CACHE_VERSION;
+
+        if (!isRendered || !dirtyBeats.isEmpty() || renderedVersion != mDataCacheVersion) {
+
+            // The stream renders itself until the data cache is written
+            mDataCacheEpoch.incrementAndGet();
+
+            try {
+
+                if (!isRendered) {
+
+                    // Nothing rendered yet, render all beats
+                    mDataCache = new short[numSongSamples];
+                    mDataCacheBeatLevels = new short[mNumBeats];
+                    mDataCacheBeatLengths = new int[mNumBeats];
+
+                    Arrays.fill(mDataCache, (short) -DanceBotConfiguration.DATA_LEVEL);
+
+                    renderParallel(plan, config, mDataCache, mDataCacheBeatLevels, mDataCacheBeatLengths);
 
                 } else {
 
-                    // If this happens, all messages have been written for the current beat
+                    updateDataCache(plan, config, dirtyBeats);
+                }
+
+                mDataCacheVersion = renderedVersion;
+
+            } finally {
+                mDataCacheEpoch.incrementAndGet();
+            }
+        }
+
+        int numCopied = Math.max(0, Math.min(numSamples, mDataCache.length - startSample));
+
+        if (numCopied > 0) {
+            System.arraycopy(mDataCache, startSample, outputBuffer, 0, numCopied);
+        }
+
+        return numCopied;
+    }
+
+    /**
+     * Release the rendered data channel of the whole song
+     */
+    public synchronized void releaseDataCache() {
+
+        mDataCacheEpoch.incrementAndGet();
+
+        mDataCache = null;
+        mDataCacheBeatLevels = null;
+        mDataCacheBeatLengths = null;
+        mDataCacheVersion = NO_DATA_CACHE_VERSION;
+
+        mDataCacheEpoch.incrementAndGet();
+    }
+
+    /**
+     * Render all beats of the data cache which changed in the led or motor choreography. If the
+     * number of messages of a changed beat switches parity, the level of all following beats
+     * inverts. The message samples of these beats are inverted in place instead of rendered.
+     *
+     * @param plan render plan which contains the changes
+     * @param config data channel configuration to render with
+     * @param dirtyBeats beats changed since the last render
+     */
+    private void updateDataCache(ChoreographyRenderPlan plan, DataChannelConfig config, BitSet dirtyBeats) {
+
+        // Neither the first nor the last beat is rendered
+        int firstBeat = Math.max(1, dirtyBeats.nextSetBit(0));
+        int lastBeat = mNumBeats - 2;
+
+        if (dirtyBeats.isEmpty() || firstBeat > lastBeat) {
+            return;
+        }
+
+        CachedDataChannelModulator writer = getMessageWriter(config);
+        short level = mDataCacheBeatLevels[firstBeat];
+
+        for (int i = firstBeat; i <= lastBeat; ++i) {
+
+            boolean isDirty = dirtyBeats.get(i);
+
+            // The cache is up to date until the next changed beat
+            if (!isDirty && level == mDataCacheBeatLevels[i]) {
+
+                int nextDirtyBeat = dirtyBeats.nextSetBit(i + 1);
+
+                if (nextDirtyBeat < 0 || nextDirtyBeat > lastBeat) {
+                    mergeMessageCacheCounters(writer);
+                    return;
+                }
+
+                i = nextDirtyBeat - 1;
+                level = mDataCacheBeatLevels[nextDirtyBeat];
+                continue;
+            }
+
+            int startSample = plan.getStartSample(i);
+            int endSample = plan.getEndSample(i);
+            boolean inverts = (mDataCacheBeatLevels[i] != mDataCacheBeatLevels[i + 1]);
+
+            mDataCacheBeatLevels[i] = level;
+
+            if (isDirty) {
+
+                // Render the changed beat again
+                Arrays.fill(mDataCache, startSample, endSample, (short) -DanceBotConfiguration.DATA_LEVEL);
+                level = renderBeat(plan, writer, i, mDataCache, level, mDataCacheBeatLengths);
+
+            } else {
+
+                // Only the level of the beat changed, invert its messages
+                for (int j = startSample; j < startSample + mDataCacheBeatLengths[i]; ++j) {
+                    mDataCache[j] *= -1;
+                }
+
+                if (inverts) {
+                    level *= -1;
+                }
+            }
+        }
+
+        mDataCacheBeatLevels[lastBeat + 1] = level;
+
+        mergeMessageCacheCounters(writer);
+    }
+
+    /**
+     * Render the messages of a window of the data channel like readDataAll, but only record the
+     * level transitions of every message. The beats of the window are rendered from the latest
+     * published choreography snapshot, the first message starts from DATA_LEVEL.
+     *
+     * @param startSample sample index of the song at the start of the window
+     * @param numSamples number of samples of the window
+     * @return edge list of the messages within the window
+     */
+    @Override
+    public DataChannelEdgeList renderDataEdges(int startSample, int numSamples) {
+
+        ChoreographyRenderPlan plan = getRenderPlan();
+        DataChannelModulator modulator = mDataChannelConfig.get().modulator;
+
+        DataChannelEdgeList edgeList = new DataChannelEdgeList(
+                modulator.getNumSamplesReset(),
+                modulator.getNumSamplesOne(),
+                modulator.getNumSamplesZero());
+
+        int endSample = startSample + numSamples;
+        short lastBitLevel = DanceBotConfiguration.DATA_LEVEL;
+
+        // Neither the first nor the last beat is rendered, as in readDataAll
+        for (int i = Math.max(1, getBeatAtSample(plan, startSample)); i < plan.getBeatCount() - 1; ++i) {
+
+            // Get the start and end sample for the current selected beat
+            int startSamplePosition = plan.getStartSample(i);
+
+            if (startSamplePosition >= endSample) {
+                break;
+            }
+
+            // Compute the total number of samples to process for the current beat
+            int samplesToProcess = plan.getEndSample(i) - startSamplePosition;
+
+            int samplePos = 0;
+
+            while (samplePos < samplesToProcess) {
+
+                // Get relative beat in percent
+                float relativeBeat = ((float) samplePos / (float) samplesToProcess);
+
+                int payload = plan.computePayload(i, relativeBeat);
+                int numSamplesInMsg = modulator.getMessageLength(payload);
+
+                // Every message inverts the level of the last sample
+                short messageLevel = lastBitLevel;
+                lastBitLevel *= -1;
+
+                // Only record messages that fit into the current beat
+                if (samplePos + numSamplesInMsg < samplesToProcess) {
+                    edgeList.addMessage(startSamplePosition + samplePos, payload, messageLevel);
+                } else {
+                    edgeList.dropMessage();
                     break;
                 }
 
@@ -349,40 +874,69 @@ public class ChoreographyManager implements DanceBotMusicStream.StreamPlayback {
             }
         }
 
-        return samplePos;
+        return edgeList;
     }
 
+    /**
+     * @param plan compiled choreography
+     * @param samplePosition sample index of the song
+     * @return index of the beat which contains the sample position
+     */
+    private int getBeatAtSample(ChoreographyRenderPlan plan, int samplePosition) {
+
+        int beat = mMusicFile.getBeatFromSample(samplePosition);
+
+        // Within a beat, the music file returns the next beat
+        if (beat > 0 && plan.getStartSample(beat) > samplePosition) {
+            --beat;
+        }
+
+        return beat;
+    }
 
     /**
-     * Read dance sequence data stream into outputDataBuffer
+     * Read dance sequence data stream into outputDataBuffer. Called by the stream thread only,
+     * it renders from the published choreography snapshot without locking. A new snapshot is
+     * picked up when the stream enters the next beat.
      *
      * @param outputDataBuffer output data buffer, containing dance sequence pcm encoding
-     * @param currentMicroSecs number of shorts written so far
+     * @param numSamples number of samples to fill, the buffer may be larger
+     * @param startSample sample index of the song at the start of the output data buffer
      * @return number of samples written to the output data buffer
      */
     @Override
-    public int readDataStream(short[] outputDataBuffer, long currentMicroSecs) {
+    public int readDataStream(short[] outputDataBuffer, int numSamples, long startSample) {
 
-        int outputDataBufferSize = outputDataBuffer.length;
-        int beatPos = mMusicFile.getBeatFromMicroSecs(currentMicroSecs);
+        int outputDataBufferSize = numSamples;
+        int beatPos = mMusicFile.getBeatFromSample((int) startSample);
         //Log.d(LOG_TAG, "beat: " + beatPos);
 
+        // Switch to the latest snapshot at a beat boundary only
+        ChoreographyRenderPlan plan = mStreamPlan;
+        if (plan == null || beatPos != mStreamPlanBeat) {
+            plan = getRenderPlan();
+            mStreamPlan = plan;
+            mStreamPlanBeat = beatPos;
+        }
+
+        // Copy from the rendered data channel of the whole song, if it matches the snapshot
+        int samplesCopied = readDataStreamCached(outputDataBuffer, numSamples, startSample, plan);
+        if (samplesCopied >= 0) {
+            return samplesCopied;
+        }
+
+        // A new data channel configuration is picked up with the next chunk
+        CachedDataChannelModulator writer = getMessageWriter(mDataChannelConfig.get());
+
         // Get the start sample of the buffer
-        long sampleStartBuffer = (long) (currentMicroSecs * 0.001 * 0.001 * mSampleRate);
+        long sampleStartBuffer = startSample;
 
         // Fill buffer with default value initially
-        Arrays.fill(outputDataBuffer, (short) -DanceBotConfiguration.DATA_LEVEL);
-
-        // Get the corresponding MotorBeatElement and LedBeatElement
-        MotorBeatElement motorElement = mMotorElements.get(beatPos);
-        LedBeatElement ledElement = mLedElements.get(beatPos);
+        Arrays.fill(outputDataBuffer, 0, outputDataBufferSize, (short) -DanceBotConfiguration.DATA_LEVEL);
 
         // Get beat based sample start and end positions
-        long sampleStartBeat = mMotorElements.get(beatPos).getSamplePosition();
-        long sampleEndBeat = 0;
-        if (beatPos + 1 < mMotorElements.size()) {
-            sampleEndBeat = mMotorElements.get(beatPos + 1).getSamplePosition();
-        }
+        long sampleStartBeat = plan.getStartSample(beatPos);
+        long sampleEndBeat = plan.getEndSample(beatPos);
 
         // Compute the total number of samples to process for the current beat
         int samplesToProcess = outputDataBufferSize;
@@ -401,35 +955,23 @@ public class ChoreographyManager implements DanceBotMusicStream.StreamPlayback {
             // Relative beat must be calculated from real start and end position of beat
             float relativeBeat = ((float) (samplePos + sampleStartBuffer - sampleStartBeat) / (float) (sampleEndBeat - sampleStartBeat));
 
-            // Initialize velocities and led
-            short vLeft = 0;
-            short vRight = 0;
-            byte led = 0;
-
-            // Check the current motor element is different from the DEFAULT state
-            if (motorElement.getMotionType() != MotorType.DEFAULT) {
-                vLeft = (short) motorElement.getVelocityLeft(relativeBeat);
-                vRight = (short) motorElement.getVelocityRight(relativeBeat);
-            }
-
-            // Check the current led element is different from the DEFAULT state
-            if (ledElement.getMotionType() != LedType.DEFAULT) {
-                led = ledElement.getLedBytes(relativeBeat);
-            }
+            // Encode velocities and led into a single message payload
+            int payload = plan.computePayload(beatPos, relativeBeat);
 
-            int numSamplesInMsg = calculateMessage(mDataBuffer, vLeft, vRight, led, mLastSampleLevel);
+            int numSamplesInMsg = writer.getMessageLength(payload);
 
-            // Get last sample level
-            mLastSampleLevel = mDataBuffer[numSamplesInMsg - 1];
+            // Every message inverts the level of the last sample
+            short messageLevel = mStreamLevel;
+            mStreamLevel *= -1;
 
             /*
-             * If the end of samples to process is not reached, the data buffer is copied to
+             * If the end of samples to process is not reached, the message is written to the
              * pcm buffer
              */
             if (samplePos + numSamplesInMsg < samplesToProcess) {
 
                 // Write calculated data message to pcm buffer
-                writeMessage(outputDataBuffer, mDataBuffer, samplePos, numSamplesInMsg);
+                writeMessage(writer, outputDataBuffer, samplePos, numSamplesInMsg, payload, messageLevel);
 
                 // Accumulate number of processed samples
                 samplePos += numSamplesInMsg;
@@ -441,163 +983,254 @@ public class ChoreographyManager implements DanceBotMusicStream.StreamPlayback {
             }
         }
 
+        mergeMessageCacheCounters(writer);
+
         return samplePos;
     }
 
     /**
-     * Write next data message to the output buffer
+     * Read dance sequence data stream from the data cache of the whole song without locking. The
+     * copy is only used if the data cache was not written meanwhile.
      *
-     * @param outputBuffer output buffer that contains all messages
-     * @param dataMessage next message to write to the output buffer
-     * @param msgStart start offset of the output buffer
-     * @param msgLength length of the next message to write
-     * @return error code
+     * @param outputDataBuffer output data buffer, containing dance sequence pcm encoding
+     * @param bufferSize number of samples to fill
+     * @param startSample sample index of the song at the start of the output data buffer
+     * @param plan choreography snapshot of the stream
+     * @return number of samples copied or -1 if the data cache does not hold this snapshot
      */
-    private int writeMessage(short[] outputBuffer, short[] dataMessage, int msgStart, int msgLength) {
+    private int readDataStreamCached(short[] outputDataBuffer, int bufferSize, long startSample, ChoreographyRenderPlan plan) {
 
-        if (msgStart + msgLength <= outputBuffer.length) {
+        int epoch = mDataCacheEpoch.get();
 
-            for (int i = 0; i < msgLength; ++i) {
-                outputBuffer[msgStart + i] = dataMessage[i];
-            }
+        // The data cache is being written
+        if ((epoch & 1) != 0) {
+            return -1;
+        }
 
-            return DanceBotError.NO_ERROR;
+        short[] dataCache = mDataCache;
+        short[] beatLevels = mDataCacheBeatLevels;
 
-        } else {
+        if (dataCache == null || mDataCacheVersion != plan.getVersion()) {
+            return -1;
+        }
 
-            Log.d(LOG_TAG, "ERROR: writeMessage out of bounds");
-            return DanceBotError.WRITE_ERROR;
+        // Get the start sample of the buffer
+        int sampleStartBuffer = (int) startSample;
+        int numSamples = Math.max(0, Math.min(bufferSize, dataCache.length - sampleStartBuffer));
+
+        if (numSamples > 0) {
+            System.arraycopy(dataCache, sampleStartBuffer, outputDataBuffer, 0, numSamples);
+        }
+
+        // Level before the beat of the next chunk, the first beat is never rendered
+        int nextSample = sampleStartBuffer + bufferSize;
+        int nextBeat = Math.min(getBeatAtSample(plan, nextSample), beatLevels.length - 1);
+        short nextBeatLevel = (nextBeat > 0) ? beatLevels[nextBeat] : DanceBotConfiguration.DATA_LEVEL;
+
+        // The copy is torn if the data cache was written meanwhile, the compare and set orders
+        // it before any later write of the data cache
+        if (!mDataCacheEpoch.compareAndSet(epoch, epoch)) {
+            return -1;
         }
+
+        // Behind the end of the song the data channel stays at the default value
+        Arrays.fill(outputDataBuffer, numSamples, bufferSize, (short) -DanceBotConfiguration.DATA_LEVEL);
+
+        // If the next chunk is rendered live, it continues with the level of the data cache
+        mStreamLevel = getLevelAtSample(plan, nextBeat, nextBeatLevel, nextSample);
+
+        return numSamples;
     }
 
     /**
-     * This function calculates the needed samples for left and right velocities and for the led
-     * light. The values of the current beat element will be parsed an put into the chunk container.
-     * After the three properties are parsed and the buffer filled it returns the number of samples
-     * written to the data chunk.
+     * Compute the level of the data channel at a sample position like renderBeat, without
+     * writing any message. Every message of the beat which starts before the position inverts
+     * the level before the beat, also a dropped one.
      *
-     * @param dataChunk message into which will be written
-     * @param vLeft velocity left of current element
-     * @param vRight velocity right of current element
-     * @param led led light indicator of current element
-     * @param lastBitLevel last DATA_LEVEL that was written to the output buffer
-     * @return the written samples
+     * @param plan compiled choreography
+     * @param beat index of the beat which contains the sample position
+     * @param lastBitLevel last DATA_LEVEL before the beat
+     * @param samplePosition sample index of the song
+     * @return last DATA_LEVEL before the sample position
      */
-    private int calculateMessage(short[] dataChunk, short vLeft, short vRight, byte led, short lastBitLevel) {
-
-        int offsetSamples = 0;
-        byte velByte = 0;
+    private short getLevelAtSample(ChoreographyRenderPlan plan, int beat, short lastBitLevel, int samplePosition) {
 
-        // Init all dataBuffer elements to -DATA_LEVEL
-        for (int i = 0; i < dataChunk.length; ++i) {
-            dataChunk[i] = -DanceBotConfiguration.DATA_LEVEL;
+        // Neither the first nor the last beat is rendered
+        if (beat < 1 || beat >= plan.getBeatCount() - 1) {
+            return lastBitLevel;
         }
 
-        // Invert last bit
-        lastBitLevel *= -1;
+        DataChannelModulator modulator = mDataChannelConfig.get().modulator;
 
-        // Write reset message
-        for (int i = 0; i < mNumSamplesReset; ++i) {
-            dataChunk[i] = lastBitLevel;
-        }
+        int startSamplePosition = plan.getStartSample(beat);
+        int samplesToProcess = plan.getEndSample(beat) - startSamplePosition;
+        int samplePos = 0;
 
-        // Bits written
-        offsetSamples += mNumSamplesReset;
+        while (samplePos < samplesToProcess && startSamplePosition + samplePos < samplePosition) {
 
-        // Parse left velocity
-        if (vLeft < 0) {
-            vLeft *= -1;
-        } else {
-            // Set sign bit in velByte
-            velByte |= 0x80;
+            // Get relative beat in percent
+            float relativeBeat = ((float) samplePos / (float) samplesToProcess);
+
+            int payload = plan.computePayload(beat, relativeBeat);
+            int numSamplesInMsg = modulator.getMessageLength(payload);
+
+            // Every message inverts the level of the last sample
+            lastBitLevel *= -1;
+
+            if (samplePos + numSamplesInMsg >= samplesToProcess) {
+                break;
+            }
+
+            samplePos += numSamplesInMsg;
         }
 
-        // Get bits for left velocity
-        velByte |= 0x7F & vLeft;
+        return lastBitLevel;
+    }
 
-        // Write left velocity message
-        for (int i = 0; i < Byte.SIZE; ++i) {
+    /**
+     * Return the latest published choreography snapshot. It is only compiled here if nothing
+     * was published yet.
+     *
+     * @return current render plan
+     */
+    private ChoreographyRenderPlan getRenderPlan() {
 
-            int numSamples = mNumSamplesZero;
+        ChoreographyRenderPlan plan = mPublishedPlan.get();
 
-            // Check if the i-th bit in velByte is set to 1
-            if ((velByte & (0x01 << i)) != 0) {
-                numSamples = mNumSamplesOne;
-            }
+        if (plan == null) {
+            publishChoreography();
+            plan = mPublishedPlan.get();
+        }
 
-            // Invert last bit level
-            lastBitLevel *= -1;
+        return plan;
+    }
 
-            // Write the number of samples required for the specific velocity encoding
-            for (int j = 0; j < numSamples; ++j) {
-                dataChunk[j + offsetSamples] = lastBitLevel;
-            }
+    /**
+     * Return the message writer of the calling thread, set up for the modulator of the data
+     * channel configuration
+     *
+     * @param config data channel configuration to render with
+     * @return message writer of the calling thread
+     */
+    private CachedDataChannelModulator getMessageWriter(DataChannelConfig config) {
+
+        CachedDataChannelModulator writer = mMessageWriters.get();
 
-            // Count number of samples added to the buffer
-            offsetSamples += numSamples;
+        // The cached messages are dropped with the modulator
+        if (writer == null || writer.getModulator() != config.modulator) {
+            writer = new CachedDataChannelModulator(config.modulator);
+            mMessageWriters.set(writer);
         }
 
-        // Init right velocity
-        velByte = 0;
+        return writer;
+    }
 
-        // Parse right velocity
-        if (vRight < 0) {
-            vRight *= -1;
-        } else {
-            velByte |= 0x80;
+    /**
+     * Add the hit and miss counts of a message writer to the totals and reset them
+     *
+     * @param writer message writer of the calling thread
+     */
+    private void mergeMessageCacheCounters(CachedDataChannelModulator writer) {
+
+        if (writer.getHitCount() > 0) {
+            mMessageCacheHits.addAndGet(writer.getHitCount());
+        }
+
+        if (writer.getMissCount() > 0) {
+            mMessageCacheMisses.addAndGet(writer.getMissCount());
         }
 
-        // Get bits for right velocity
-        velByte |=  0x7F & vRight;
+        writer.resetCounters();
+    }
 
-        // Write right velocity message
-        for (int i = 0; i < Byte.SIZE; ++i) {
+    /**
+     * Write next data message to the output buffer
+     *
+     * @param writer message writer of the rendering thread
+     * @param outputBuffer output buffer that contains all messages
+     * @param msgStart start offset of the output buffer
+     * @param msgLength length of the next message to write
+     * @param payload message payload to write
+     * @param lastBitLevel last DATA_LEVEL that was written to the output buffer
+     * @return error code
+     */
+    private int writeMessage(CachedDataChannelModulator writer, short[] outputBuffer, int msgStart, int msgLength, int payload, short lastBitLevel) {
 
-            int numSamples = mNumSamplesZero;
+        if (msgStart + msgLength <= outputBuffer.length) {
 
-            // Check if the i-th bit in velByte is set to 1
-            if ((velByte & (0x01 << i)) != 0) {
-                numSamples = mNumSamplesOne;
-            }
+            writer.writeMessage(outputBuffer, msgStart, payload, lastBitLevel);
 
-            // Invert last bit level
-            lastBitLevel *= -1;
+            return DanceBotError.NO_ERROR;
 
-            // Write the number of samples required for the specific velocity encoding
-            for (int j = 0; j < numSamples; ++j) {
-                dataChunk[j + offsetSamples] = lastBitLevel;
-            }
+        } else {
 
-            // Count number of samples added to the buffer
-            offsetSamples += numSamples;
+            Log.d(LOG_TAG, "ERROR: writeMessage out of bounds");
+            return DanceBotError.WRITE_ERROR;
         }
+    }
 
-        // Parse led byte
-        byte ledByte = (byte) (0xFF & led);
+    /**
+     * Wire format of the data channel and the modulator encoding it. A configuration is never
+     * changed, a new setting is published as a new configuration, such that the stream always
+     * sees a modulator together with its timings.
+     */
+    private static final class DataChannelConfig {
 
-        // Write led message
-        for (int i = 0; i < Byte.SIZE; ++i) {
+        final DataChannelTimings timings;
+        final boolean isReferenceModulator;
 
-            int numSamples = mNumSamplesZero;
+        // Modulator for the decoded sample rate, null until the sample rate is known
+        final DataChannelModulator modulator;
 
-            // Check if the i-th bit in ledByte is set to 1
-            if ((ledByte & (0x01 << i)) != 0) {
-                numSamples = mNumSamplesOne;
-            }
+        // Changes with every setting, part of the data version
+        final int version;
 
-            // Invert last bit level
-            lastBitLevel *= -1;
+        DataChannelConfig(DataChannelTimings timings, boolean isReferenceModulator, DataChannelModulator modulator, int version) {
+            this.timings = timings;
+            this.isReferenceModulator = isReferenceModulator;
+            this.modulator = modulator;
+            this.version = version;
+        }
 
-            // Write the number of samples required for the specific led encoding
-            for (int j = 0; j < numSamples; ++j) {
-                dataChunk[j + offsetSamples] = lastBitLevel;
-            }
+        /**
+         * @param sampleRate decoded sample rate
+         * @return the same setting with a modulator of the same kind for the sample rate
+         */
+        DataChannelConfig forSampleRate(int sampleRate) {
+
+            DataChannelModulator modulator = isReferenceModulator
+                    ? new ReferenceDataChannelModulator(timings, sampleRate)
+                    : new TableDataChannelModulator(timings, sampleRate);
 
-            // Count number of samples added to the buffer
-            offsetSamples += numSamples;
+            return new DataChannelConfig(timings, isReferenceModulator, modulator, version);
         }
+    }
+
+    /**
+     * @return number of messages copied from the message cache
+     */
+    public long getMessageCacheHits() {
+        return mMessageCacheHits.get();
+    }
+
+    /**
+     * @return number of messages rendered because they were not in the message cache
+     */
+    public long getMessageCacheMisses() {
+        return mMessageCacheMisses.get();
+    }
+
+    /**
+     * Log and reset the hit and miss counters of the message cache
+     */
+    public void logMessageCacheStatistics() {
+
+        long hits = mMessageCacheHits.getAndSet(0);
+        long misses = mMessageCacheMisses.getAndSet(0);
+        long total = hits + misses;
 
-        return offsetSamples;
+        Log.d(LOG_TAG, "message cache: " + hits + " hits, " + misses + " misses, hit rate: "
+                + ((total > 0) ? (100 * hits / total) : 0) + "%");
     }
 
     public Choreography<LedBeatElement> getLedChoreography() {
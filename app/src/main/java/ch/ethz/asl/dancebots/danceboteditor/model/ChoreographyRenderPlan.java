@@ -0,0 +1,291 @@
+package ch.ethz.asl.dancebots.danceboteditor.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Compiled form of the motor and led choreography. Every beat is flattened into one instruction
+ * of the primitive instruction array: start and end sample, motor operation, led operation and
+ * their parameters. Constant motor and led values are encoded at compile time, sine envelopes
+ * are referenced by index into the shared envelope tables.
+ *
+ * A plan is immutable. When the choreography changes a new plan is compiled and published as a
+ * snapshot, the stream keeps using its current plan until the next beat.
+ */
+final class ChoreographyRenderPlan {
+
+    // Motor operations
+    private static final int MOTOR_CONSTANT = 0;
+    private static final int MOTOR_TWIST = 1;
+    private static final int MOTOR_BACK_AND_FORTH = 2;
+
+    // Led operations
+    private static final int LED_CONSTANT = 0;
+    private static final int LED_KNIGHT_RIDER = 1;
+    private static final int LED_RANDOM = 2;
+    private static final int LED_BLINK = 3;
+    private static final int LED_SAME_BLINK = 4;
+
+    // Layout of a beat instruction
+    private static final int START_SAMPLE = 0;
+    private static final int END_SAMPLE = 1;
+    private static final int MOTOR_OP = 2;
+    private static final int MOTOR_PARAM = 3;
+    private static final int LED_OP = 4;
+    private static final int LED_PARAM = 5;
+    private static final int LED_FREQUENCY = 6;
+    private static final int INSTRUCTION_SIZE = 7;
+
+    private final int[] mInstructions;
+    private final WaveformTable[] mEnvelopes;
+    private final int mNumBeats;
+
+    // Choreography versions this plan was compiled from
+    private final int mMotorVersion;
+    private final int mLedVersion;
+
+    /**
+     * Compile the render plan
+     *
+     * @param motorElements motor elements of all beats
+     * @param ledElements led elements of all beats
+     * @param motorVersion version of the motor choreography
+     * @param ledVersion version of the led choreography
+     */
+    ChoreographyRenderPlan(List<MotorBeatElement> motorElements, List<LedBeatElement> ledElements, int motorVersion, int ledVersion) {
+
+        mNumBeats = motorElements.size();
+        mMotorVersion = motorVersion;
+        mLedVersion = ledVersion;
+
+        mInstructions = new int[mNumBeats * INSTRUCTION_SIZE];
+        ArrayList<WaveformTable> envelopes = new ArrayList<>();
+
+        for (int i = 0; i < mNumBeats; ++i) {
+
+            MotorBeatElement motorElement = motorElements.get(i);
+            LedBeatElement ledElement = ledElements.get(i);
+
+            int base = i * INSTRUCTION_SIZE;
+
+            // The last beat has no end, it stays empty
+            mInstructions[base + START_SAMPLE] = (int) motorElement.getSamplePosition();
+            if (i + 1 < mNumBeats) {
+                mInstructions[base + END_SAMPLE] = (int) motorElements.get(i + 1).getSamplePosition();
+            } else {
+                mInstructions[base + END_SAMPLE] = mInstructions[base + START_SAMPLE];
+            }
+
+            // Motor operation
+            switch (motorElement.getMotionType()) {
+
+                case TWIST:
+                    mInstructions[base + MOTOR_OP] = MOTOR_TWIST;
+                    mInstructions[base + MOTOR_PARAM] = addEnvelope(envelopes, motorElement.getVelocityEnvelope());
+                    break;
+
+                case BACK_AND_FORTH:
+                    mInstructions[base + MOTOR_OP] = MOTOR_BACK_AND_FORTH;
+                    mInstructions[base + MOTOR_PARAM] = addEnvelope(envelopes, motorElement.getVelocityEnvelope());
+                    break;
+
+                case DEFAULT:
+                    mInstructions[base + MOTOR_OP] = MOTOR_CONSTANT;
+                    mInstructions[base + MOTOR_PARAM] = encodeVelocities(0, 0);
+                    break;
+
+                default:
+                    // All other motions have constant velocities within the beat
+                    mInstructions[base + MOTOR_OP] = MOTOR_CONSTANT;
+                    mInstructions[base + MOTOR_PARAM] = encodeVelocities(motorElement.getVelocityLeft(0), motorElement.getVelocityRight(0));
+                    break;
+            }
+
+            // Led operation
+            switch (ledElement.getMotionType()) {
+
+                case KNIGHT_RIDER:
+                    mInstructions[base + LED_OP] = LED_KNIGHT_RIDER;
+                    mInstructions[base + LED_PARAM] = addEnvelope(envelopes, ledElement.getPositionEnvelope());
+                    break;
+
+                case RANDOM:
+                    mInstructions[base + LED_OP] = LED_RANDOM;
+                    break;
+
+                case BLINK:
+                    mInstructions[base + LED_OP] = LED_BLINK;
+                    mInstructions[base + LED_PARAM] = 0xFF & ledElement.getSwitchByte();
+                    mInstructions[base + LED_FREQUENCY] = Float.floatToIntBits(ledElement.getFrequencyVal());
+                    break;
+
+                case SAME_BLINK:
+                    mInstructions[base + LED_OP] = LED_SAME_BLINK;
+                    mInstructions[base + LED_PARAM] = 0xFF & ledElement.getSwitchByte();
+                    mInstructions[base + LED_FREQUENCY] = Float.floatToIntBits(ledElement.getFrequencyVal());
+                    break;
+
+                case CONSTANT:
+                    mInstructions[base + LED_OP] = LED_CONSTANT;
+                    mInstructions[base + LED_PARAM] = 0xFF & ledElement.getSwitchByte();
+                    break;
+
+                default:
+                    mInstructions[base + LED_OP] = LED_CONSTANT;
+                    mInstructions[base + LED_PARAM] = 0;
+                    break;
+            }
+        }
+
+        mEnvelopes = envelopes.toArray(new WaveformTable[envelopes.size()]);
+    }
+
+    /**
+     * Add an envelope to the envelope tables. Elements of a dance sequence share their envelope
+     * and are consecutive, thus only the last table is checked.
+     *
+     * @return index of the envelope
+     */
+    private static int addEnvelope(ArrayList<WaveformTable> envelopes, WaveformTable envelope) {
+
+        int last = envelopes.size() - 1;
+
+        if (last >= 0 && envelopes.get(last) == envelope) {
+            return last;
+        }
+
+        envelopes.add(envelope);
+        return last + 1;
+    }
+
+    /**
+     * Compute the message payload of a beat. The payload packs the left velocity byte
+     * (bits 0-7), the right velocity byte (bits 8-15) and the led byte (bits 16-23) into a
+     * single integer.
+     *
+     * @param beat beat index
+     * @param relativeBeat relative position within the beat
+     * @return the 24-bit message payload
+     */
+    int computePayload(int beat, float relativeBeat) {
+
+        int base = beat * INSTRUCTION_SIZE;
+        int motorParam = mInstructions[base + MOTOR_PARAM];
+        int ledParam = mInstructions[base + LED_PARAM];
+
+        int motorBytes;
+        int velocity;
+
+        switch (mInstructions[base + MOTOR_OP]) {
+
+            case MOTOR_TWIST:
+                velocity = mEnvelopes[motorParam].lookup(relativeBeat);
+                motorBytes = encodeVelocities(velocity, -velocity);
+                break;
+
+            case MOTOR_BACK_AND_FORTH:
+                velocity = mEnvelopes[motorParam].lookup(relativeBeat);
+                motorBytes = encodeVelocities(velocity, velocity);
+                break;
+
+            default:
+                motorBytes = motorParam;
+                break;
+        }
+
+        int ledByte;
+
+        switch (mInstructions[base + LED_OP]) {
+
+            case LED_KNIGHT_RIDER:
+                ledByte = 0x03 << mEnvelopes[ledParam].lookup(relativeBeat);
+                break;
+
+            case LED_RANDOM:
+                ledByte = LedBeatElement.computeRandomByte(beat, relativeBeat);
+                break;
+
+            case LED_BLINK:
+                if (Math.round(relativeBeat * Float.intBitsToFloat(mInstructions[base + LED_FREQUENCY])) % 2 == 0) {
+                    ledByte = ledParam;
+                } else {
+                    ledByte = ~ledParam;
+                }
+                break;
+
+            case LED_SAME_BLINK:
+                if (Math.round(relativeBeat * Float.intBitsToFloat(mInstructions[base + LED_FREQUENCY])) % 2 == 0) {
+                    ledByte = ledParam;
+                } else {
+                    ledByte = 0;
+                }
+                break;
+
+            default:
+                ledByte = ledParam;
+                break;
+        }
+
+        return motorBytes | ((0xFF & ledByte) << 16);
+    }
+
+    /**
+     * @return the left velocity byte (bits 0-7) and the right velocity byte (bits 8-15)
+     */
+    private static int encodeVelocities(int velocityLeft, int velocityRight) {
+        return encodeVelocity((short) velocityLeft) | (encodeVelocity((short) velocityRight) << 8);
+    }
+
+    /**
+     * Encode a velocity into its message byte. The most significant bit is set for positive
+     * velocities, the lower 7 bits hold the absolute value.
+     *
+     * @param velocity signed velocity
+     * @return velocity byte in the range [0, 255]
+     */
+    static int encodeVelocity(short velocity) {
+
+        int velByte = 0;
+
+        // Parse velocity sign
+        if (velocity < 0) {
+            velocity *= -1;
+        } else {
+            velByte |= 0x80;
+        }
+
+        // Get bits for the absolute velocity
+        return velByte | (0x7F & velocity);
+    }
+
+    /**
+     * @return whether the plan was compiled from these choreography versions
+     */
+    boolean isCompiledFrom(int motorVersion, int ledVersion) {
+        return mMotorVersion == motorVersion && mLedVersion == ledVersion;
+    }
+
+    /**
+     * @return version of the snapshot, the sum of the choreography versions
+     */
+    long getVersion() {
+        return (long) mMotorVersion + mLedVersion;
+    }
+
+    int getStartSample(int beat) {
+        return mInstructions[beat * INSTRUCTION_SIZE + START_SAMPLE];
+    }
+
+    int getEndSample(int beat) {
+        return mInstructions[beat * INSTRUCTION_SIZE + END_SAMPLE];
+    }
+
+    int getBeatCount() {
+        return mNumBeats;
+    }
+}
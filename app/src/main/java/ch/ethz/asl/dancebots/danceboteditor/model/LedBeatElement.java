@@ -2,8 +2,6 @@ package ch.ethz.asl.dancebots.danceboteditor.model;
 
 import android.content.Context;
 
-import java.util.Random;
-
 /**
  * Created by andrin on 18.09.15.
  */
@@ -13,10 +11,17 @@ public class LedBeatElement extends BeatElement {
 
     // Number of led lights attached to the robot
     private static final int NUM_LED_LIGHTS = 8;
+    // Number of random led bytes per beat
+    private static final int RANDOM_STEPS_PER_BEAT = 32;
     // Specific motion type
     private LedType mLedType;
     // Led light array
     private boolean[] mLedLightSwitches;
+    // Cached byte of the led light switches
+    private transient byte mSwitchByte;
+    private transient volatile boolean mSwitchByteValid;
+    // Compiled knight rider position envelope, shared by all elements of a dance sequence
+    private transient volatile WaveformTable mPositionEnvelope;
 
     /**
      * LedBeatElement constructor
@@ -43,23 +48,18 @@ public class LedBeatElement extends BeatElement {
 
             case KNIGHT_RIDER:
 
-                int pos = (int) (3.5 + 3.49 * Math.sin(relativeBeat * mFrequencyVal * 2.0 * Math.PI));
+                int pos = getPositionEnvelope().lookup(relativeBeat);
                 ledByte |= (0x03 << pos);
                 break;
 
             case RANDOM:
 
-                int NUM = 100;
-                int numRands = NUM;
-                byte[] bs = new byte[numRands];
-                new Random().nextBytes(bs);
-                ledByte = bs[new Random().nextInt(numRands)];
-
+                ledByte = computeRandomByte(mBeatPosition, relativeBeat);
                 break;
 
             case BLINK:
 
-                byte b = computeByteFromSwitches();
+                byte b = getSwitchByte();
 
                 if (Math.round(relativeBeat * mFrequencyVal) % 2 == 0) {
                     ledByte = b;
@@ -72,7 +72,7 @@ public class LedBeatElement extends BeatElement {
             case SAME_BLINK:
 
                 if (Math.round(relativeBeat * mFrequencyVal) % 2 == 0) {
-                    ledByte = computeByteFromSwitches();
+                    ledByte = getSwitchByte();
                 } else {
                     ledByte = 0;
                 }
@@ -81,28 +81,79 @@ public class LedBeatElement extends BeatElement {
 
             case CONSTANT:
 
-                ledByte = computeByteFromSwitches();
+                ledByte = getSwitchByte();
                 break;
         }
 
         return ledByte;
     }
 
+    /**
+     * Return the compiled knight rider envelope, the envelope is computed again if the frequency
+     * changed since
+     * @return led position envelope over the relative beat position
+     */
+    WaveformTable getPositionEnvelope() {
+
+        WaveformTable envelope = mPositionEnvelope;
+
+        if (envelope == null || !envelope.matches(mFrequencyVal, 3.5, 3.49)) {
+            envelope = new WaveformTable(mFrequencyVal, 3.5, 3.49);
+            mPositionEnvelope = envelope;
+        }
+
+        return envelope;
+    }
+
+    /**
+     * Counter-based random led byte. The beat index and the step within the beat are hashed,
+     * such that the same position always gets the same byte, in the stream and in the export.
+     * @param beatPosition beat index
+     * @param relativeBeat relative sample position within the current beat
+     * @return random led byte
+     */
+    static byte computeRandomByte(int beatPosition, float relativeBeat) {
+
+        long x = ((long) beatPosition << 32) | ((int) (relativeBeat * RANDOM_STEPS_PER_BEAT) & 0xFFFFFFFFL);
+
+        // Finalizer of the 64-bit MurmurHash3
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+
+        return (byte) x;
+    }
+
+    /**
+     * Return the byte of the led light switches, it is only computed when the switches changed
+     * @return single byte that represents boolean[] mLedLightSwitches
+     */
+    byte getSwitchByte() {
+
+        if (!mSwitchByteValid) {
+            mSwitchByte = computeByteFromSwitches();
+            mSwitchByteValid = true;
+        }
+
+        return mSwitchByte;
+    }
+
     /**
      * Transform boolean[] into single 8-bit byte with the corresponding bits set to 1
      * @return single byte that represents boolean[] mLedLightSwitches
      */
     private byte computeByteFromSwitches() {
 
-        // Init new string
-        String s = "";
+        int b = 0;
 
-        // Concatenate light switch booleans to string
-        for (boolean b : mLedLightSwitches) {
-            s = s.concat(b ? "1" : "0");
+        // The first light switch is the most significant bit
+        for (boolean isOn : mLedLightSwitches) {
+            b = (b << 1) | (isOn ? 1 : 0);
         }
-        // Parse string as (byte) integer with radix 2
-        return (byte) Integer.parseInt(s, 2);
+
+        return (byte) b;
     }
 
     /**
@@ -143,6 +194,7 @@ public class LedBeatElement extends BeatElement {
     public void setLedLightSwitches(boolean[] ledLightSwitches) {
         // Set led element specific values
         mLedLightSwitches = ledLightSwitches;
+        mSwitchByteValid = false;
     }
 
     /**
@@ -164,6 +216,10 @@ public class LedBeatElement extends BeatElement {
         mLedType = ledType;
         mFrequencyVal = frequencyVal;
         mLedLightSwitches = ledLightSwitches;
+        mSwitchByteValid = false;
+
+        // Compile the position envelope, it is shared with the dance sequence elements
+        mPositionEnvelope = new WaveformTable(mFrequencyVal, 3.5, 3.49);
     }
 
     /**
@@ -184,6 +240,7 @@ public class LedBeatElement extends BeatElement {
         for (int i = 0; i < NUM_LED_LIGHTS; ++i) {
             mLedLightSwitches[i] = false;
         }
+        mSwitchByteValid = false;
     }
 
     /**
@@ -200,6 +257,9 @@ public class LedBeatElement extends BeatElement {
 
         // Set led element specific frequency val
         setFrequencyVal(elem);
+
+        // Share the position envelope of the dance sequence
+        mPositionEnvelope = ((LedBeatElement) elem).getPositionEnvelope();
     }
 
     @Override
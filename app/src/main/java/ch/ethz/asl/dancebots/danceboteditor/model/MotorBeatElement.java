@@ -18,6 +18,9 @@ public class MotorBeatElement extends BeatElement {
     private int mLeftVelocityValue;
     private int mRightVelocityValue;
 
+    // Compiled velocity envelope, shared by all elements of a dance sequence
+    private transient volatile WaveformTable mVelocityEnvelope;
+
     /**
      * MotorBeatElement constructor
      * @param context application context is needed to resolve colors and strings
@@ -56,14 +59,14 @@ public class MotorBeatElement extends BeatElement {
 
             case TWIST:
                 if (isLeft) {
-                    velocity = (int) (mLeftVelocityValue * Math.sin(relativeBeat * mFrequencyVal * 2.0 * Math.PI));
+                    velocity = getVelocityEnvelope().lookup(relativeBeat);
                 } else {
-                    velocity = (int) (-mLeftVelocityValue * Math.sin(relativeBeat * mFrequencyVal * 2.0 * Math.PI));
+                    velocity = -getVelocityEnvelope().lookup(relativeBeat);
                 }
                 break;
 
             case BACK_AND_FORTH:
-                velocity = (int) (mLeftVelocityValue * Math.sin(relativeBeat * mFrequencyVal * 2.0 * Math.PI));
+                velocity = getVelocityEnvelope().lookup(relativeBeat);
                 break;
 
             case CONSTANT:
@@ -83,6 +86,23 @@ public class MotorBeatElement extends BeatElement {
         return velocity;
     }
 
+    /**
+     * Return the compiled velocity envelope, the envelope is computed again if the frequency or
+     * the velocity changed since
+     * @return velocity envelope over the relative beat position
+     */
+    WaveformTable getVelocityEnvelope() {
+
+        WaveformTable envelope = mVelocityEnvelope;
+
+        if (envelope == null || !envelope.matches(mFrequencyVal, 0, mLeftVelocityValue)) {
+            envelope = new WaveformTable(mFrequencyVal, 0, mLeftVelocityValue);
+            mVelocityEnvelope = envelope;
+        }
+
+        return envelope;
+    }
+
     /**
      * @param elem
      */
@@ -165,6 +185,9 @@ public class MotorBeatElement extends BeatElement {
         mVelocityRightIdx = velocityRightIdx;
         mLeftVelocityValue = leftVelocityVal;
         mRightVelocityValue = rightVelocityVal;
+
+        // Compile the velocity envelope, it is shared with the dance sequence elements
+        mVelocityEnvelope = new WaveformTable(mFrequencyVal, 0, mLeftVelocityValue);
     }
 
     /**
@@ -204,6 +227,9 @@ public class MotorBeatElement extends BeatElement {
 
         // Set motor element specific absolute values
         setVelocityValues(elem);
+
+        // Share the velocity envelope of the dance sequence
+        mVelocityEnvelope = ((MotorBeatElement) elem).getVelocityEnvelope();
     }
 
     @Override
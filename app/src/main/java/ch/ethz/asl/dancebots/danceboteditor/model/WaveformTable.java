@@ -0,0 +1,70 @@
+package ch.ethz.asl.dancebots.danceboteditor.model;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Quantized lookup table of the envelope (int) (offset + amplitude * sin(relativeBeat * frequency * 2 * PI))
+ * over the relative beat position [0, 1]. Tables are immutable, such that they can be shared by
+ * all elements of a dance sequence and read by the renderer from any thread.
+ */
+final class WaveformTable {
+
+    // Number of quantization steps over one beat
+    private static final int TABLE_SIZE = 1024;
+
+    private final float mFrequency;
+    private final double mOffset;
+    private final double mAmplitude;
+
+    private final int[] mValues;
+
+    /**
+     * Compute the envelope table
+     *
+     * @param frequency number of periods per beat
+     * @param offset constant offset of the envelope
+     * @param amplitude amplitude of the envelope
+     */
+    WaveformTable(float frequency, double offset, double amplitude) {
+
+        mFrequency = frequency;
+        mOffset = offset;
+        mAmplitude = amplitude;
+
+        mValues = new int[TABLE_SIZE + 1];
+
+        for (int i = 0; i <= TABLE_SIZE; ++i) {
+            mValues[i] = evaluate((float) i / TABLE_SIZE);
+        }
+    }
+
+    /**
+     * @param relativeBeat relative position within the current beat
+     * @return envelope value at the closest quantization step
+     */
+    int lookup(float relativeBeat) {
+
+        int idx = (int) (relativeBeat * TABLE_SIZE + 0.5f);
+
+        // Positions outside of the beat are not tabulated
+        if (idx < 0 || idx > TABLE_SIZE) {
+            return evaluate(relativeBeat);
+        }
+
+        return mValues[idx];
+    }
+
+    /**
+     * @return whether the table was computed for these envelope parameters
+     */
+    boolean matches(float frequency, double offset, double amplitude) {
+        return mFrequency == frequency && mOffset == offset && mAmplitude == amplitude;
+    }
+
+    private int evaluate(float relativeBeat) {
+        return (int) (mOffset + mAmplitude * Math.sin(relativeBeat * mFrequency * 2.0 * Math.PI));
+    }
+}
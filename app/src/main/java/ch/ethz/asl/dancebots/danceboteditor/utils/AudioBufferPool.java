@@ -0,0 +1,89 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Fixed pool of pcm buffers for the audio threads. All buffers are allocated up front, such that
+ * steady state streaming does not allocate. The free list is a lock free ring, thus at most one
+ * thread may release buffers and at most one thread may acquire them, which may be the same
+ * thread. Every allocation after the construction is counted, to prove that the pool is large
+ * enough.
+ */
+public class AudioBufferPool {
+
+    // Free list, release is its producer and acquire its consumer
+    private final AudioRingBuffer<short[]> mFreeBuffers;
+    private final AtomicInteger mAllocationCount = new AtomicInteger();
+    private volatile int mBufferSize;
+
+    /**
+     * @param numBuffers number of buffers in the pool
+     * @param bufferSize number of samples of every buffer
+     */
+    public AudioBufferPool(int numBuffers, int bufferSize) {
+
+        mFreeBuffers = new AudioRingBuffer<>(numBuffers);
+        mBufferSize = bufferSize;
+
+        for (int i = 0; i < numBuffers; ++i) {
+            mFreeBuffers.offer(new short[bufferSize], 0, 0);
+        }
+    }
+
+    /**
+     * Take a buffer from the pool. If the pool is empty or the buffer is too small, a new
+     * buffer is allocated and counted.
+     *
+     * @param minSize minimum number of samples required
+     * @return a buffer with at least minSize samples
+     */
+    public short[] acquire(int minSize) {
+
+        short[] buffer = null;
+
+        if (!mFreeBuffers.isEmpty()) {
+            buffer = mFreeBuffers.peekBuffer();
+            mFreeBuffers.remove();
+        }
+
+        if (buffer == null || buffer.length < minSize) {
+
+            // Later allocations are at least as large as the largest request so far
+            if (minSize > mBufferSize) {
+                mBufferSize = minSize;
+            }
+
+            buffer = new short[mBufferSize];
+            mAllocationCount.incrementAndGet();
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool, it is dropped if the pool is full
+     *
+     * @param buffer buffer acquired from this pool
+     */
+    public void release(short[] buffer) {
+        if (buffer != null) {
+            mFreeBuffers.offer(buffer, 0, 0);
+        }
+    }
+
+    /**
+     * @return number of buffers allocated after the pool was created
+     */
+    public int getAllocationCount() {
+        return mAllocationCount.get();
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+}
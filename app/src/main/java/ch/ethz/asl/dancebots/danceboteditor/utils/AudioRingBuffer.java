@@ -0,0 +1,143 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Lock free single producer, single consumer ring of pcm chunks. Every slot holds a reference to
+ * a pcm buffer of type T, the number of valid samples in it and its stream position. The slots are
+ * allocated up front, passing a chunk through the ring does not allocate nor copy samples.
+ *
+ * Exactly one thread may call the producer methods (offer, close) and exactly one other thread
+ * may call the consumer methods (peek*, remove). The producer publishes a slot by an ordered
+ * write of the tail counter, the consumer frees a slot by an ordered write of the head counter.
+ */
+public class AudioRingBuffer<T> {
+
+    private final Object[] mBuffers;
+    private final int[] mLengths;
+    private final long[] mStartSamples;
+    private final int mCapacity;
+
+    // Number of chunks removed by the consumer, respectively offered by the producer
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile boolean mClosed = false;
+
+    /**
+     * @param capacity maximum number of chunks in the ring
+     */
+    public AudioRingBuffer(int capacity) {
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+
+        mCapacity = capacity;
+        mBuffers = new Object[capacity];
+        mLengths = new int[capacity];
+        mStartSamples = new long[capacity];
+    }
+
+    /**
+     * Producer: append a chunk to the ring
+     *
+     * @param buffer pcm buffer of the chunk
+     * @param length number of valid samples in the buffer
+     * @param startSample stream sample index of the first frame of the chunk
+     * @return false if the ring is full, the chunk is not appended then
+     */
+    public boolean offer(T buffer, int length, long startSample) {
+
+        long tail = mTail.get();
+
+        if (tail - mHead.get() >= mCapacity) {
+            return false;
+        }
+
+        int slot = (int) (tail % mCapacity);
+        mBuffers[slot] = buffer;
+        mLengths[slot] = length;
+        mStartSamples[slot] = startSample;
+
+        // Publish the slot after it is written
+        mTail.lazySet(tail + 1);
+
+        return true;
+    }
+
+    /**
+     * Producer: no more chunks will be offered
+     */
+    public void close() {
+        mClosed = true;
+    }
+
+    /**
+     * @return true if the producer can not offer a chunk
+     */
+    public boolean isFull() {
+        return mTail.get() - mHead.get() >= mCapacity;
+    }
+
+    /**
+     * @return true if the consumer can not peek a chunk
+     */
+    public boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    /**
+     * @return true if the ring is closed and all chunks were removed
+     */
+    public boolean isDrained() {
+        // Read the flag first, the producer closes the ring after its last offer
+        return mClosed && isEmpty();
+    }
+
+    /**
+     * Consumer: first chunk of the ring, the ring must not be empty
+     *
+     * @return pcm buffer of the first chunk
+     */
+    @SuppressWarnings("unchecked")
+    public T peekBuffer() {
+        return (T) mBuffers[(int) (mHead.get() % mCapacity)];
+    }
+
+    public int peekLength() {
+        return mLengths[(int) (mHead.get() % mCapacity)];
+    }
+
+    public long peekStartSample() {
+        return mStartSamples[(int) (mHead.get() % mCapacity)];
+    }
+
+    /**
+     * Consumer: remove the first chunk, its slot may be reused by the producer afterwards
+     */
+    public void remove() {
+
+        long head = mHead.get();
+        mBuffers[(int) (head % mCapacity)] = null;
+
+        // Free the slot after it is read
+        mHead.lazySet(head + 1);
+    }
+
+    /**
+     * @return number of chunks in the ring
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+}
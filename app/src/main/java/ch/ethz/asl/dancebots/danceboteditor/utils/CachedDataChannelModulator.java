@@ -0,0 +1,134 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import java.util.Arrays;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Data channel modulator which caches the rendered messages of another modulator. Consecutive
+ * messages of a beat mostly carry the same payload, such that a message is a single block copy
+ * from a bounded cache of rendered messages. The cache is direct mapped on the payload and the
+ * start polarity, its slots are allocated once for the longest message and overwritten on
+ * collision.
+ *
+ * A cached modulator is not thread safe, every rendering thread uses its own.
+ */
+public class CachedDataChannelModulator implements DataChannelModulator {
+
+    // Number of entries of the message cache, must be a power of two
+    public static final int CACHE_SIZE = 64;
+
+    private final DataChannelModulator mModulator;
+
+    private final short[][] mSlotSamples;
+    private final int[] mSlotKeys = new int[CACHE_SIZE];
+    private final int[] mSlotLengths = new int[CACHE_SIZE];
+
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * @param modulator modulator which renders the messages missing in the cache
+     */
+    public CachedDataChannelModulator(DataChannelModulator modulator) {
+
+        mModulator = modulator;
+        mSlotSamples = new short[CACHE_SIZE][modulator.getMessageLength(0xFFFFFF)];
+
+        // No key has bit 25 set, such that all slots are empty
+        Arrays.fill(mSlotKeys, -1);
+    }
+
+    @Override
+    public int getMessageLength(int payload) {
+        return mModulator.getMessageLength(payload);
+    }
+
+    /**
+     * Write the samples of a message. The message is looked up in the cache first, on a miss it
+     * is rendered into its slot.
+     *
+     * @param outputBuffer buffer into which the message will be written
+     * @param offset start offset of the message in the output buffer
+     * @param payload message payload of left velocity, right velocity and led byte
+     * @param lastBitLevel last DATA_LEVEL before the message
+     * @return the written samples
+     */
+    @Override
+    public int writeMessage(short[] outputBuffer, int offset, int payload, short lastBitLevel) {
+
+        // The 24-bit payload and the start polarity identify the message samples. Consecutive
+        // messages alternate their polarity, both polarities of a payload map to adjacent slots.
+        int key = (payload & 0xFFFFFF) | ((lastBitLevel > 0) ? 0 : (1 << 24));
+        int slot = (key ^ (key >>> 7) ^ (key >>> 15) ^ (key >>> 24)) & (CACHE_SIZE - 1);
+
+        if (mSlotKeys[slot] == key) {
+            ++mHitCount;
+        } else {
+            ++mMissCount;
+            mSlotLengths[slot] = mModulator.writeMessage(mSlotSamples[slot], 0, payload, lastBitLevel);
+            mSlotKeys[slot] = key;
+        }
+
+        System.arraycopy(mSlotSamples[slot], 0, outputBuffer, offset, mSlotLengths[slot]);
+
+        return mSlotLengths[slot];
+    }
+
+    /**
+     * @return modulator which renders the messages missing in the cache
+     */
+    public DataChannelModulator getModulator() {
+        return mModulator;
+    }
+
+    /**
+     * @return number of messages copied from the cache since the last reset
+     */
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return number of messages rendered because they were not cached since the last reset
+     */
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Reset the hit and miss counters, the cached messages are kept
+     */
+    public void resetCounters() {
+        mHitCount = 0;
+        mMissCount = 0;
+    }
+
+    @Override
+    public DataChannelTimings getTimings() {
+        return mModulator.getTimings();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mModulator.getSampleRate();
+    }
+
+    @Override
+    public int getNumSamplesReset() {
+        return mModulator.getNumSamplesReset();
+    }
+
+    @Override
+    public int getNumSamplesOne() {
+        return mModulator.getNumSamplesOne();
+    }
+
+    @Override
+    public int getNumSamplesZero() {
+        return mModulator.getNumSamplesZero();
+    }
+}
@@ -2,6 +2,7 @@ package ch.ethz.asl.dancebots.danceboteditor.utils;
 
 import android.content.Context;
 
+import java.io.File;
 import java.io.Serializable;
 
 import ch.ethz.asl.dancebots.danceboteditor.model.BeatElementContents;
@@ -20,10 +21,14 @@ public class DanceBotEditorManager implements Serializable {
     // Singleton instance
     private static DanceBotEditorManager instance = null;
 
+    private static final String PCM_CACHE_DIRECTORY = "pcm";
+
     private Context mContext;
     private DanceBotMusicFile mDanceBotMusicFile;
     private ChoreographyManager mChoreoManager;
     private HorizontalRecyclerViews mBeatViews;
+    private transient PcmDiskCache mPcmCache;
+    private transient PcmStore mPcmStore;
 
     /**
      * Static Menu implementations
@@ -119,6 +124,27 @@ public class DanceBotEditorManager implements Serializable {
     public Context getContext() {
         return mContext;
     }
+
+    /**
+     * @return cache of decoded songs in the cache directory of the app, the context must be set
+     */
+    public synchronized PcmDiskCache getPcmCache() {
+        if (mPcmCache == null) {
+            File directory = new File(mContext.getCacheDir(), PCM_CACHE_DIRECTORY);
+            mPcmCache = new PcmDiskCache(directory, PcmDiskCache.DEFAULT_BUDGET_BYTES);
+        }
+        return mPcmCache;
+    }
+
+    /**
+     * @return owner of the decoded songs in memory, backed by the pcm cache
+     */
+    public synchronized PcmStore getPcmStore() {
+        if (mPcmStore == null) {
+            mPcmStore = new PcmStore(getPcmCache());
+        }
+        return mPcmStore;
+    }
     public DanceBotMusicFile getDanceBotMusicFile() {
         return mDanceBotMusicFile;
     }
@@ -17,6 +17,9 @@ import android.widget.SeekBar;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import ch.ethz.asl.dancebots.danceboteditor.R;
 import ch.ethz.asl.dancebots.danceboteditor.dialogs.StickyOkDialog;
@@ -32,6 +35,20 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
 
     private String LOG_TAG = this.getClass().getSimpleName();
 
+    // Default number of chunks buffered between the decoder, render and output stage
+    private static final int DEFAULT_DECODE_LOOKAHEAD = 8;
+    private static final int DEFAULT_RENDER_LOOKAHEAD = 4;
+
+    private static final long NO_SEEK = -1;
+
+    // Number of frames written per AudioTrack write when streaming from the pcm cache
+    private static final int CACHE_CHUNK_FRAMES = 1024;
+
+    // Longest loop which is rendered into loop buffers, about 24 s at 44.1 kHz. The two loop
+    // buffers hold two repeats each, 16 bytes per frame. Longer loops are streamed and wrap at
+    // the loop end.
+    private static final int MAX_LOOP_FRAMES = 1 << 20;
+
     private MediaPlayerListener mEventListener = null;
     private Handler handler = new Handler();
 
@@ -42,7 +59,7 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
 
     private MediaExtractor mMediaExtractor;
     private String mSourcePath;
-    private boolean mStop = true;
+    private volatile boolean mStop = true;
 
     private String mime = null;
     private int sampleRate = 0, channels = 0, bitrate = 0;
@@ -50,9 +67,53 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
 
     private StreamPlayback mDataSource;
     private boolean mDataSourceSet = false;
-    private long mSampleCountMicroSecs = 0;
+    private PlaybackClock mClock;
     private ImageButton mPlayButton;
 
+    // Buffers of the playback loop, allocated when the playback starts. The chunks are direct
+    // buffers, which the AudioTrack reads in place, the data channel is rendered into a short[]
+    private DirectBufferPool mChunkPool;
+    private AudioBufferPool mBufferPool;
+
+    // Decoder -> render stage -> output stage, the free chunks return to the decoder
+    private AudioRingBuffer<ByteBuffer> mDecodedChunks;
+    private AudioRingBuffer<ByteBuffer> mRenderedChunks;
+    private AudioRingBuffer<ByteBuffer> mFreeChunks;
+
+    // Threads of the stages. A stage parks while it can not make progress and is unparked by the
+    // neighbour stage which hands a chunk over or frees a slot.
+    private volatile Thread mDecodeThread;
+    private volatile Thread mRenderThread;
+    private volatile Thread mOutputThread;
+    private int mDecodeLookahead = DEFAULT_DECODE_LOOKAHEAD;
+    private int mRenderLookahead = DEFAULT_RENDER_LOOKAHEAD;
+
+    // Latest seek target in micro seconds, the decoder stage takes it between two buffers
+    private final AtomicLong mPendingSeekUs = new AtomicLong(NO_SEEK);
+
+    // The decoder stage makes the epoch odd while it flushes the pipeline, the render and
+    // output stage acknowledge the odd epoch and stay idle until it is even again
+    private volatile int mFlushEpoch = 0;
+    private volatile int mRenderFlushAck = 0;
+    private volatile int mOutputFlushAck = 0;
+
+    // Pre-rendered stereo pcm of the song, streamed instead of decoding if it is ready
+    private StereoPcmCache mPcmCache;
+
+    // Stream only the data channel, the music is played by a separate sound system
+    private volatile boolean mDataOnly = false;
+
+    // A-B loop as {start sample, end sample}, null if the whole song is played
+    private volatile long[] mLoopRange = null;
+
+    // Loop buffers handed between the loop stream and the loop render stage. The render stage
+    // renders into the free buffer, or into its rendered buffer again if it was not played yet.
+    private final AtomicReference<LoopBuffer> mFreeLoop = new AtomicReference<>();
+    private final AtomicReference<LoopBuffer> mRenderedLoop = new AtomicReference<>();
+
+    // Metrics of all playbacks of this stream
+    private final StreamMetrics mMetrics = new StreamMetrics();
+
     /**
      * Interface for any instance that
      */
@@ -70,7 +131,34 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
 
         void prepareDataBuffer();
 
-        int readDataStream(short[] outBuffer, long shortCount);
+        int readDataStream(short[] outBuffer, int numSamples, long startSample);
+
+        void resetDataStream();
+
+        /**
+         * @return version of the data channel, it changes whenever the data channel changes
+         */
+        long getDataVersion();
+
+        /**
+         * Copy a window of the data channel of the whole song
+         *
+         * @param outBuffer output buffer, the window starts at index zero
+         * @param startSample sample index of the song at the start of the window
+         * @param numSamples number of samples to copy
+         * @return number of samples copied, less than numSamples at the end of the song
+         */
+        int readDataCached(short[] outBuffer, int startSample, int numSamples);
+
+        /**
+         * Render the messages of a window of the data channel into an edge list, the first
+         * message starts from DATA_LEVEL
+         *
+         * @param startSample sample index of the song at the start of the window
+         * @param numSamples number of samples of the window
+         * @return edge list of the messages within the window
+         */
+        DataChannelEdgeList renderDataEdges(int startSample, int numSamples);
     }
 
 
@@ -102,6 +190,62 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
         mDataSourceSet = true;
     }
 
+    /**
+     * Stream from a pre-rendered stereo pcm cache of the song, once it is ready. The cache is
+     * refreshed in the background whenever the playback starts with an outdated cache.
+     *
+     * @param pcmCache pcm cache of the song of this stream
+     */
+    public void setPcmCache(StereoPcmCache pcmCache) {
+        mPcmCache = pcmCache;
+    }
+
+    /**
+     * Stream only the data channel, without decoding the song. The music channel stays silent
+     * and the AudioTrack is clocked by the sample count of the song. The mode applies from the
+     * next playback start on.
+     *
+     * @param dataOnly true to stream only the data channel
+     */
+    public void setDataOnly(boolean dataOnly) {
+        mDataOnly = dataOnly;
+    }
+
+    public boolean isDataOnly() {
+        return mDataOnly;
+    }
+
+    /**
+     * Loop the playback over a beat range. The stream wraps from the end of the last beat to the
+     * start of the first beat without a gap. The loop applies from the next playback start on.
+     * A loop of up to MAX_LOOP_FRAMES is rendered once into loop buffers, a longer one is
+     * streamed like the whole song and wraps at its end.
+     *
+     * @param firstBeat first beat of the loop
+     * @param lastBeat last beat of the loop, it is played to its end
+     */
+    public void setLoop(int firstBeat, int lastBeat) {
+
+        int[] beatBuffer = mMusicFile.getBeatBuffer();
+
+        if (beatBuffer == null || firstBeat < 0 || lastBeat < firstBeat || lastBeat >= beatBuffer.length) {
+            throw new IllegalArgumentException("invalid beat range: " + firstBeat + " - " + lastBeat);
+        }
+
+        long startSample = beatBuffer[firstBeat];
+        long endSample = (lastBeat + 1 < beatBuffer.length) ? beatBuffer[lastBeat + 1] : mMusicFile.getSampleCount();
+
+        mLoopRange = new long[] {startSample, endSample};
+    }
+
+    public void clearLoop() {
+        mLoopRange = null;
+    }
+
+    public boolean isLooping() {
+        return mLoopRange != null;
+    }
+
     public void setPlayButton(ImageButton playButton) {
         mPlayButton = playButton;
     }
@@ -130,6 +274,29 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
         // Set thread priority to audio
         Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
 
+        // Loop a rendered buffer, if the music of the loop is at hand without decoding
+        long[] loopRange = mLoopRange;
+        boolean isLoopRendered = loopRange != null && loopRange[1] - loopRange[0] <= MAX_LOOP_FRAMES;
+        if (isLoopRendered && (mDataOnly || (mPcmCache != null && mPcmCache.isReady()))) {
+            streamLoop(loopRange[0], loopRange[1]);
+            onCompletion();
+            return;
+        }
+
+        // Nothing to decode if the music is not streamed
+        if (mDataOnly) {
+            streamDataOnly(loopRange);
+            onCompletion();
+            return;
+        }
+
+        // Nothing to decode if the song is cached, a long loop is wrapped by the decoder
+        if (loopRange == null && mPcmCache != null && mPcmCache.isReady()) {
+            streamFromCache(mPcmCache);
+            onCompletion();
+            return;
+        }
+
         AudioTrack audioTrack;
         MediaCodec codec = null;
 
@@ -193,6 +360,7 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
 
         ByteBuffer[] codecInputBuffers = codec.getInputBuffers();
         ByteBuffer[] codecOutputBuffers = codec.getOutputBuffers();
+        ByteBuffer[] codecOutputViews = getBufferViews(codecOutputBuffers);
 
         // Configure AudioTrack
         int channelConfiguration = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
@@ -201,10 +369,42 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
                 AudioManager.STREAM_MUSIC, sampleRate, channelConfiguration,
                 AudioFormat.ENCODING_PCM_16BIT, minSize, AudioTrack.MODE_STREAM);
 
+        // Size the pool buffers for the largest codec output or the AudioTrack buffer (in bytes)
+        int maxOutputSize = minSize;
+        for (ByteBuffer outputBuffer : codecOutputBuffers) {
+            maxOutputSize = Math.max(maxOutputSize, outputBuffer.capacity());
+        }
+
+        // Every chunk in the rings owns a buffer, one more buffer is filled by the decoder. The
+        // data channel has one sample per stereo frame.
+        int numChunkBuffers = mDecodeLookahead + mRenderLookahead + 1;
+        mChunkPool = new DirectBufferPool(numChunkBuffers, maxOutputSize);
+        mBufferPool = new AudioBufferPool(1, maxOutputSize / 4);
+
+        mDecodedChunks = new AudioRingBuffer<>(mDecodeLookahead);
+        mRenderedChunks = new AudioRingBuffer<>(mRenderLookahead);
+        mFreeChunks = new AudioRingBuffer<>(numChunkBuffers);
+        for (int i = 0; i < numChunkBuffers; ++i) {
+            mFreeChunks.offer(mChunkPool.acquire(0), 0, 0);
+        }
+
         // Start playing, we will feed the AudioTrack later
         audioTrack.play();
+        mMetrics.onTrackStarted();
         mMediaExtractor.selectTrack(0);
 
+        mClock = new PlaybackClock(sampleRate);
+        mStreamStates.setState(MusicStreamStates.PLAYING);
+
+        // Start the render and output stages, this thread is the decoder stage
+        Thread renderThread = new Thread(new RenderStage(), "DanceBotRenderStage");
+        Thread outputThread = new Thread(new OutputStage(audioTrack), "DanceBotOutputStage");
+        mDecodeThread = Thread.currentThread();
+        mRenderThread = renderThread;
+        mOutputThread = outputThread;
+        renderThread.start();
+        outputThread.start();
+
         // Start decoding
         final long kTimeOutUs = 1000;
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
@@ -212,13 +412,44 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
         boolean sawOutputEOS = false;
         int noOutputCounter = 0;
         int noOutputCounterLimit = 10;
-
-        mStreamStates.setState(MusicStreamStates.PLAYING);
+        long seekTargetSample = 0;
+
+        // Without a rendered loop, the decoder wraps at the loop end
+        long loopStartUs = 0;
+        if (loopRange != null) {
+            loopStartUs = loopRange[0] * 1000000 / sampleRate;
+            mMediaExtractor.seekTo(loopStartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            seekTargetSample = loopRange[0];
+        }
 
         while (!sawOutputEOS && noOutputCounter < noOutputCounterLimit && !mStop) {
 
             // Pause implementation
-            waitPlay();
+            waitPlay(true);
+
+            // Apply the latest seek between two buffers, also while paused
+            long seekUs = mPendingSeekUs.getAndSet(NO_SEEK);
+            if (seekUs != NO_SEEK) {
+
+                // A loop is never left by a seek
+                long seekSample = mClock.microSecsToSamples(seekUs);
+                if (loopRange != null && (seekSample < loopRange[0] || seekSample >= loopRange[1])) {
+                    seekUs = loopStartUs;
+                }
+
+                flushPipeline(codec, audioTrack, seekUs);
+
+                seekTargetSample = mClock.microSecsToSamples(seekUs);
+                sawInputEOS = false;
+                noOutputCounter = 0;
+                continue;
+            }
+
+            // Leave the stream in the codec while the lookahead of the render stage is full
+            if (mDecodedChunks.isFull() || mFreeChunks.isEmpty()) {
+                LockSupport.park(this);
+                continue;
+            }
 
             noOutputCounter++;
 
@@ -255,40 +486,76 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
                 }
             } // !sawInputEOS
 
-            // Decode to PCM and push it to the AudioTrack player
+            // Decode to PCM and pass it to the render stage
             int res = codec.dequeueOutputBuffer(info, kTimeOutUs);
 
             if (res >= 0) {
                 if (info.size > 0) noOutputCounter = 0;
 
+                boolean wrapLoop = loopRange != null && (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+
                 int outputBufIndex = res;
-                ByteBuffer buf = codecOutputBuffers[outputBufIndex];
+                ByteBuffer buf = codecOutputViews[outputBufIndex];
 
-                // Create new short buffer, info.size is the amount of data (in bytes) in the buffer
-                short[] chunk = new short[info.size / 2];
-                buf.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(chunk);
-                buf.clear();
+                // info.size is the amount of data (in bytes) in the buffer
+                int chunkLength = info.size / 2;
 
-                if (chunk.length > 0) {
+                if (chunkLength > 0) {
+
+                    // The presentation time of the output buffer, not the extractor position,
+                    // which is ahead by the depth of the decoder
+                    long startSample = mClock.onChunkDecoded(info.presentationTimeUs, chunkLength / channels);
+
+                    // After a seek to a sync frame, drop the samples before the seek target
+                    int skipSamples = 0;
+                    if (startSample < seekTargetSample) {
+                        skipSamples = (int) Math.min(chunkLength, (seekTargetSample - startSample) * channels);
+                        startSample += skipSamples / channels;
+                        chunkLength -= skipSamples;
+                    }
 
-                    if (mDataSourceSet) {
-                        mSampleCountMicroSecs = mMediaExtractor.getSampleTime();
-                        interleaveChannels(chunk, mDataSource, mSampleCountMicroSecs);
-                        //Log.d(LOG_TAG, "microsecs count: " + mSampleCountMicroSecs);
+                    // Drop the samples behind the loop end, the decoder wraps after this buffer
+                    if (loopRange != null && startSample + chunkLength / channels >= loopRange[1]) {
+                        chunkLength = (int) Math.max(0, (loopRange[1] - startSample) * channels);
+                        wrapLoop = true;
                     }
 
-                    // Write decoded PCM to the AudioTrack
-                    audioTrack.write(chunk, 0, chunk.length);
+                    if (chunkLength > 0) {
 
-                    /*if (mStreamStates.getState() != MusicStreamStates.PLAYING) {
-                        // if (events != null) handler.post(new Runnable() { @Override public void run() { events.onPlay();  } });
-                        mStreamStates.setState(MusicStreamStates.PLAYING);
-                    }*/
+                        ByteBuffer chunk = mFreeChunks.peekBuffer();
+                        mFreeChunks.remove();
+
+                        // Only a codec output larger than all before requires a new pool buffer
+                        if (2 * chunkLength > chunk.capacity()) {
+                            mChunkPool.release(chunk);
+                            chunk = mChunkPool.acquire(2 * chunkLength);
+                        }
+
+                        // Copy the decoded samples into the pooled chunk, a single block copy
+                        buf.clear();
+                        buf.position(info.offset + 2 * skipSamples);
+                        buf.limit(info.offset + info.size);
+                        chunk.clear();
+                        chunk.put(buf);
+                        chunk.flip();
+
+                        mDecodedChunks.offer(chunk, chunkLength, startSample);
+                        LockSupport.unpark(mRenderThread);
+                    }
                 }
 
                 codec.releaseOutputBuffer(outputBufIndex, false);
 
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (wrapLoop) {
+
+                    // Continue decoding at the loop start. The chunks in flight and the
+                    // AudioTrack are kept, such that the loop end is played without a gap.
+                    codec.flush();
+                    mMediaExtractor.seekTo(loopStartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    seekTargetSample = loopRange[0];
+                    sawInputEOS = false;
+
+                } else if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                     Log.d(LOG_TAG, "saw output EOS.");
                     sawOutputEOS = true;
                 }
@@ -296,6 +563,7 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
             } else if (res == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
 
                 codecOutputBuffers = codec.getOutputBuffers();
+                codecOutputViews = getBufferViews(codecOutputBuffers);
                 Log.d(LOG_TAG, "output buffers have changed.");
 
             } else if (res == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
@@ -309,7 +577,20 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
             }
         }
 
-        Log.d(LOG_TAG, "stopping...");
+        // The render and output stages play the remaining chunks
+        mDecodedChunks.close();
+        LockSupport.unpark(mRenderThread);
+
+        try {
+            renderThread.join();
+            outputThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        Log.d(LOG_TAG, "stopping... buffer allocations while streaming: " + getBufferAllocationCount()
+                + " latency: " + mClock.getLatencyMicroSecs() / 1000 + " ms"
+                + " output latency: " + mClock.getOutputLatencyMicroSecs() / 1000 + " ms");
 
         if(codec != null) {
             codec.stop();
@@ -318,20 +599,772 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
         }
 
         if(audioTrack != null) {
-            audioTrack.flush();
-            audioTrack.release();
+            releaseTrack(audioTrack);
             audioTrack = null;
         }
 
         onCompletion();
     }
 
+    /**
+     * Create views of the codec output buffers once, such that reading the decoded samples does
+     * not allocate a new view for every buffer, nor change the position of the codec buffers.
+     *
+     * @param codecOutputBuffers codec output buffers
+     * @return views over the whole capacity of the codec output buffers
+     */
+    private static ByteBuffer[] getBufferViews(ByteBuffer[] codecOutputBuffers) {
+
+        ByteBuffer[] views = new ByteBuffer[codecOutputBuffers.length];
+
+        for (int i = 0; i < codecOutputBuffers.length; ++i) {
+            views[i] = codecOutputBuffers[i].duplicate();
+        }
+
+        return views;
+    }
+
+    /**
+     * Stream the pre-rendered stereo pcm cache, without decoder and without render stage. The
+     * data channel is only rendered while streaming if the choreography changed after the cache
+     * was written.
+     *
+     * @param pcmCache ready pcm cache of the song
+     */
+    private void streamFromCache(StereoPcmCache pcmCache) {
+
+        int cacheSampleRate = pcmCache.getSampleRate();
+        int numFrames = pcmCache.getNumFrames();
+        int channelCount = pcmCache.getChannelCount();
+        ByteBuffer pcm = pcmCache.getPcmBytes();
+
+        int minSize = AudioTrack.getMinBufferSize(cacheSampleRate, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack audioTrack = new AudioTrack(
+                AudioManager.STREAM_MUSIC, cacheSampleRate, AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT, minSize, AudioTrack.MODE_STREAM);
+
+        mChunkPool = new DirectBufferPool(1, CACHE_CHUNK_FRAMES * channelCount * 2);
+        mBufferPool = new AudioBufferPool(1, CACHE_CHUNK_FRAMES);
+        ByteBuffer chunk = mChunkPool.acquire(0);
+        short[] dataBuffer = mBufferPool.acquire(0);
+
+        mClock = new PlaybackClock(cacheSampleRate);
+        long frame = 0;
+
+        audioTrack.play();
+        mMetrics.onTrackStarted();
+        mStreamStates.setState(MusicStreamStates.PLAYING);
+
+        while (frame < numFrames && !mStop) {
+
+            // Pause implementation
+            waitPlay(true);
+
+            // A seek only moves the read position
+            long seekUs = mPendingSeekUs.getAndSet(NO_SEEK);
+            if (seekUs != NO_SEEK) {
+                frame = seekInPlace(audioTrack, seekUs, numFrames);
+                continue;
+            }
+
+            int chunkFrames = (int) Math.min(CACHE_CHUNK_FRAMES, numFrames - frame);
+            int chunkLength = chunkFrames * channelCount;
+
+            // The AudioTrack reads the mapped cache in place
+            pcm.clear();
+            pcm.position((int) frame * channelCount * 2);
+            pcm.limit(pcm.position() + 2 * chunkLength);
+            ByteBuffer out = pcm;
+
+            // The cached data channel is outdated, render it into a copy like the live stream does
+            if (mDataSourceSet && mDataSource.getDataVersion() != pcmCache.getDataVersion()) {
+                chunk.clear();
+                chunk.put(pcm);
+                chunk.flip();
+                interleaveChannels(chunk, chunkLength, dataBuffer, mDataSource, frame);
+                out = chunk;
+            }
+
+            writeChunk(audioTrack, out, 2 * chunkLength, frame, chunkFrames);
+            frame += chunkFrames;
+        }
+
+        Log.d(LOG_TAG, "stopping cache stream... output latency: " + mClock.getOutputLatencyMicroSecs() / 1000 + " ms");
+
+        mChunkPool.release(chunk);
+        mBufferPool.release(dataBuffer);
+
+        releaseTrack(audioTrack);
+    }
+
+    /**
+     * Stream an A-B loop from a rendered loop buffer, every repeat only writes the buffer to the
+     * AudioTrack. The music is taken from the pcm cache, it is silent in the data only mode.
+     * If the data channel changed, the loop render stage renders the loop again into the second
+     * buffer, which is played from the next wrap on. Until then the current loop keeps playing.
+     *
+     * @param loopStart first sample of the loop
+     * @param loopEnd sample behind the loop
+     */
+    private void streamLoop(long loopStart, long loopEnd) {
+
+        StereoPcmCache pcmCache = mDataOnly ? null : mPcmCache;
+        int streamSampleRate = (pcmCache != null) ? pcmCache.getSampleRate() : mMusicFile.getSampleRate();
+        long numFrames = (pcmCache != null) ? pcmCache.getNumFrames() : mMusicFile.getSampleCount();
+        loopEnd = Math.min(loopEnd, numFrames);
+
+        if (!mDataSourceSet || streamSampleRate <= 0 || loopEnd <= loopStart) {
+            Log.d(LOG_TAG, "Error: invalid loop " + loopStart + " - " + loopEnd);
+            return;
+        }
+
+        int frameSize = 2 * 2;
+        int minSize = AudioTrack.getMinBufferSize(streamSampleRate, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack audioTrack = new AudioTrack(
+                AudioManager.STREAM_MUSIC, streamSampleRate, AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT, minSize, AudioTrack.MODE_STREAM);
+
+        long loopLength = loopEnd - loopStart;
+        long dataVersion = mDataSource.getDataVersion();
+
+        // Both loop buffers hold the music already, the first one is rendered before the start
+        LoopRenderStage renderStage = new LoopRenderStage(pcmCache, loopStart, (int) loopLength, dataVersion);
+        LoopBuffer loop = renderStage.createBuffer();
+        renderStage.render(loop);
+
+        mRenderedLoop.set(null);
+        mFreeLoop.set(renderStage.createBuffer());
+
+        // From now on only the render stage reads the data source
+        Thread renderThread = new Thread(renderStage, "DanceBotLoopRenderStage");
+        mRenderThread = renderThread;
+        renderThread.start();
+
+        mClock = new PlaybackClock(streamSampleRate);
+        long offset = 0;
+
+        audioTrack.play();
+        mMetrics.onTrackStarted();
+        mStreamStates.setState(MusicStreamStates.PLAYING);
+
+        while (!mStop) {
+
+            // Pause implementation
+            waitPlay(true);
+
+            // A seek only moves the read position, it never leaves the loop
+            long seekUs = mPendingSeekUs.getAndSet(NO_SEEK);
+            if (seekUs != NO_SEEK) {
+
+                long seekSample = mClock.microSecsToSamples(seekUs);
+                if (seekSample < loopStart || seekSample >= loopEnd) {
+                    seekSample = loopStart;
+                }
+
+                audioTrack.pause();
+                audioTrack.flush();
+                audioTrack.play();
+
+                offset = seekSample - loopStart;
+                mClock.reset(seekSample);
+                continue;
+            }
+
+            // Wake the render stage, if the choreography changed
+            long currentDataVersion = mDataSource.getDataVersion();
+            if (currentDataVersion != dataVersion) {
+                dataVersion = currentDataVersion;
+                LockSupport.unpark(renderThread);
+            }
+
+            // Switch to the loop rendered meanwhile at the wrap, the played one becomes free
+            if (offset == 0) {
+                LoopBuffer rendered = mRenderedLoop.getAndSet(null);
+                if (rendered != null) {
+                    mFreeLoop.set(loop);
+                    loop = rendered;
+                    LockSupport.unpark(renderThread);
+                }
+            }
+
+            ByteBuffer pcm = loop.pcm;
+            long loopFrames = loop.numFrames;
+
+            // A chunk never spans two repeats of the loop
+            long repeatEnd = (offset < loopLength) ? loopLength : loopFrames;
+            int chunkFrames = (int) Math.min(CACHE_CHUNK_FRAMES, repeatEnd - offset);
+
+            pcm.clear();
+            pcm.position((int) offset * frameSize);
+            pcm.limit(pcm.position() + chunkFrames * frameSize);
+
+            writeChunk(audioTrack, pcm, chunkFrames * frameSize, loopStart + offset % loopLength, chunkFrames);
+
+            offset += chunkFrames;
+            if (offset >= loopFrames) {
+                offset = 0;
+            }
+        }
+
+        // The render stage sees the stop
+        LockSupport.unpark(renderThread);
+
+        try {
+            renderThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        mRenderedLoop.set(null);
+        mFreeLoop.set(null);
+
+        Log.d(LOG_TAG, "stopping loop stream... output latency: " + mClock.getOutputLatencyMicroSecs() / 1000 + " ms");
+
+        releaseTrack(audioTrack);
+    }
+
+    /**
+     * Rendered loop in stereo, the music in the left and the data channel in the right channel
+     */
+    private static final class LoopBuffer {
+
+        // Two repeats of the loop in native byte order
+        final ByteBuffer pcm;
+
+        // Number of frames to play, one or two repeats
+        int numFrames;
+
+        LoopBuffer(int capacity) {
+            pcm = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * Loop render stage: renders the data channel of the loop again whenever the data version
+     * changes. It takes the free loop buffer, or the rendered one back if it was not played yet,
+     * and parks while there is nothing to render or no buffer to render into. All buffers are
+     * allocated before the playback starts.
+     */
+    private class LoopRenderStage implements Runnable {
+
+        private static final int FRAME_SIZE = 2 * 2;
+
+        private final StereoPcmCache mMusic;
+        private final long mLoopStart;
+        private final int mLoopLength;
+
+        private final short[] mFirstRepeat;
+        private final short[] mSecondRepeat;
+
+        private long mRenderedVersion;
+
+        /**
+         * @param pcmCache pcm cache with the music, null for a silent music channel
+         * @param loopStart first sample of the loop
+         * @param loopLength number of samples of the loop
+         * @param dataVersion data version rendered by the first render
+         */
+        LoopRenderStage(StereoPcmCache pcmCache, long loopStart, int loopLength, long dataVersion) {
+            mMusic = pcmCache;
+            mLoopStart = loopStart;
+            mLoopLength = loopLength;
+            mFirstRepeat = new short[loopLength];
+            mSecondRepeat = new short[loopLength];
+            mRenderedVersion = dataVersion;
+        }
+
+        /**
+         * @return loop buffer for two repeats, the music is copied into both
+         */
+        LoopBuffer createBuffer() {
+
+            LoopBuffer loop = new LoopBuffer(2 * mLoopLength * FRAME_SIZE);
+
+            if (mMusic != null) {
+
+                // The data channel of the cache is copied along and overwritten by the render
+                ByteBuffer music = mMusic.getPcmBytes().duplicate();
+                music.limit((int) (mLoopStart + mLoopLength) * FRAME_SIZE);
+
+                for (int repeat = 0; repeat < 2; ++repeat) {
+                    music.position((int) mLoopStart * FRAME_SIZE);
+                    loop.pcm.put(music);
+                }
+            }
+
+            return loop;
+        }
+
+        @Override
+        public void run() {
+
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+            while (!mStop) {
+
+                long dataVersion = mDataSource.getDataVersion();
+
+                if (dataVersion == mRenderedVersion) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                // Render the loop which was not played yet again, or the free one
+                LoopBuffer loop = mRenderedLoop.getAndSet(null);
+                if (loop == null) {
+                    loop = mFreeLoop.getAndSet(null);
+                }
+
+                if (loop == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                render(loop);
+                mRenderedVersion = dataVersion;
+
+                mRenderedLoop.set(loop);
+            }
+        }
+
+        /**
+         * Render the data channel of the loop into the right channel of the loop buffer. Only
+         * the level transitions of the loop are rendered, the edge list is expanded into the
+         * repeats. If the loop holds an odd number of messages, the buffer plays a second repeat
+         * with inverted levels, such that the data level keeps alternating across the wrap.
+         *
+         * @param loop loop buffer, which is not played meanwhile
+         */
+        void render(LoopBuffer loop) {
+
+            DataChannelEdgeList edgeList = mDataSource.renderDataEdges((int) mLoopStart, mLoopLength);
+            int numRepeats = edgeList.expandLoop(mFirstRepeat, mSecondRepeat, mLoopStart);
+
+            for (int repeat = 0; repeat < numRepeats; ++repeat) {
+
+                short[] dataChannel = (repeat == 0) ? mFirstRepeat : mSecondRepeat;
+                int repeatOffset = repeat * mLoopLength * FRAME_SIZE;
+
+                for (int i = 0; i < mLoopLength; ++i) {
+                    loop.pcm.putShort(repeatOffset + i * FRAME_SIZE + 2, dataChannel[i]);
+                }
+            }
+
+            loop.numFrames = numRepeats * mLoopLength;
+
+            Log.d(LOG_TAG, "loop rendered: " + mLoopLength + " frames, " + edgeList.getMessageCount() + " messages, " + numRepeats + " repeats");
+        }
+    }
+
+    /**
+     * Stream only the data channel at the sample rate of the song, the music channel is silent.
+     * There is no decoder, the blocking writes to the AudioTrack pace the stream and the
+     * written sample count is the stream clock. A loop which is too long to be rendered wraps at
+     * its end.
+     *
+     * @param loopRange A-B loop as {start sample, end sample}, null to stream the whole song
+     */
+    private void streamDataOnly(long[] loopRange) {
+
+        int streamSampleRate = mMusicFile.getSampleRate();
+        long numFrames = mMusicFile.getSampleCount();
+
+        long startFrame = 0;
+        long endFrame = numFrames;
+        if (loopRange != null) {
+            startFrame = Math.min(loopRange[0], numFrames);
+            endFrame = Math.min(loopRange[1], numFrames);
+        }
+
+        if (!mDataSourceSet || streamSampleRate <= 0 || endFrame <= startFrame) {
+            Log.d(LOG_TAG, "Error: no data channel to stream");
+            return;
+        }
+
+        int channelCount = 2;
+        int minSize = AudioTrack.getMinBufferSize(streamSampleRate, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack audioTrack = new AudioTrack(
+                AudioManager.STREAM_MUSIC, streamSampleRate, AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT, minSize, AudioTrack.MODE_STREAM);
+
+        // The music channel of the chunk is never written, it stays silent
+        mChunkPool = new DirectBufferPool(1, CACHE_CHUNK_FRAMES * channelCount * 2);
+        mBufferPool = new AudioBufferPool(1, CACHE_CHUNK_FRAMES);
+        ByteBuffer chunk = mChunkPool.acquire(0);
+        short[] dataBuffer = mBufferPool.acquire(0);
+        for (int i = 0; i < chunk.capacity(); ++i) {
+            chunk.put(i, (byte) 0);
+        }
+
+        mClock = new PlaybackClock(streamSampleRate);
+        mDataSource.resetDataStream();
+        long frame = startFrame;
+
+        audioTrack.play();
+        mMetrics.onTrackStarted();
+        mStreamStates.setState(MusicStreamStates.PLAYING);
+
+        while (!mStop) {
+
+            // The data level continues across the wrap, like the decoder wraps a loop
+            if (frame >= endFrame) {
+                if (loopRange == null) {
+                    break;
+                }
+                frame = startFrame;
+            }
+
+            // Pause implementation
+            waitPlay(true);
+
+            // A seek only moves the sample clock, it never leaves the loop
+            long seekUs = mPendingSeekUs.getAndSet(NO_SEEK);
+            if (seekUs != NO_SEEK) {
+                frame = seekInPlace(audioTrack, seekUs, numFrames);
+                if (frame < startFrame || frame >= endFrame) {
+                    frame = startFrame;
+                    mClock.reset(frame);
+                }
+                continue;
+            }
+
+            int chunkFrames = (int) Math.min(CACHE_CHUNK_FRAMES, endFrame - frame);
+            int chunkLength = chunkFrames * channelCount;
+
+            interleaveChannels(chunk, chunkLength, dataBuffer, mDataSource, frame);
+
+            chunk.clear();
+            writeChunk(audioTrack, chunk, 2 * chunkLength, frame, chunkFrames);
+            frame += chunkFrames;
+        }
+
+        Log.d(LOG_TAG, "stopping data stream... output latency: " + mClock.getOutputLatencyMicroSecs() / 1000 + " ms");
+
+        mChunkPool.release(chunk);
+        mBufferPool.release(dataBuffer);
+
+        releaseTrack(audioTrack);
+    }
+
+    /**
+     * Seek a stream without decoder, the AudioTrack drops the samples it did not play yet
+     *
+     * @param audioTrack output of the stream
+     * @param seekUs seek target in micro seconds
+     * @param numFrames number of frames of the stream
+     * @return frame at which the stream continues
+     */
+    private long seekInPlace(AudioTrack audioTrack, long seekUs, long numFrames) {
+
+        long frame = Math.min(mClock.microSecsToSamples(seekUs), numFrames);
+
+        audioTrack.pause();
+        audioTrack.flush();
+        audioTrack.play();
+
+        mClock.reset(frame);
+        if (mDataSourceSet) {
+            mDataSource.resetDataStream();
+        }
+
+        return frame;
+    }
+
+    /**
+     * Seek the stream. The render and output stage are stopped first, such that the codec, the
+     * AudioTrack and the data source are never used by two threads. All chunks in flight are
+     * discarded and the AudioTrack drops the samples it did not play yet.
+     *
+     * @param codec decoder of the stream
+     * @param audioTrack output of the stream
+     * @param seekUs seek target in micro seconds
+     */
+    private void flushPipeline(MediaCodec codec, AudioTrack audioTrack, long seekUs) {
+
+        Log.d(LOG_TAG, "seek to " + seekUs / 1000 + " ms");
+
+        // Wait until the render and output stage are idle
+        int flushEpoch = mFlushEpoch + 1;
+        mFlushEpoch = flushEpoch;
+        syncNotify();
+
+        while ((mRenderFlushAck != flushEpoch || mOutputFlushAck != flushEpoch) && !mStop) {
+            LockSupport.park(this);
+        }
+
+        // Return the buffers of all chunks in flight to the decoder
+        recycleChunks(mDecodedChunks);
+        recycleChunks(mRenderedChunks);
+
+        audioTrack.pause();
+        audioTrack.flush();
+        audioTrack.play();
+
+        codec.flush();
+        mMediaExtractor.seekTo(seekUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+        // The stream restarts at the seek target
+        mClock.reset(mClock.microSecsToSamples(seekUs));
+        if (mDataSourceSet) {
+            mDataSource.resetDataStream();
+        }
+
+        // Resume the render and output stage
+        mFlushEpoch = flushEpoch + 1;
+        syncNotify();
+    }
+
+    /**
+     * Move all chunks of a ring back to the free chunks. Only safe while the render and output
+     * stage are idle.
+     *
+     * @param chunks ring of chunks to discard
+     */
+    private void recycleChunks(AudioRingBuffer<ByteBuffer> chunks) {
+
+        while (!chunks.isEmpty()) {
+            mFreeChunks.offer(chunks.peekBuffer(), 0, 0);
+            chunks.remove();
+        }
+    }
+
+    /**
+     * Called by the render and output stage, idle while the decoder flushes the pipeline
+     *
+     * @param isRenderStage true for the render stage, false for the output stage
+     * @return true if the stage acknowledged a flush and was idle
+     */
+    private boolean awaitFlush(boolean isRenderStage) {
+
+        int flushEpoch = mFlushEpoch;
+
+        if ((flushEpoch & 1) == 0) {
+            return false;
+        }
+
+        if (isRenderStage) {
+            mRenderFlushAck = flushEpoch;
+        } else {
+            mOutputFlushAck = flushEpoch;
+        }
+        LockSupport.unpark(mDecodeThread);
+
+        synchronized (this) {
+            while (mFlushEpoch == flushEpoch && !mStop) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Render stage: adds the data channel to the decoded chunks. It only renders a chunk if the
+     * output stage has room for it, such that a slow render never blocks the decoder and the
+     * output stage plays the rendered lookahead meanwhile.
+     */
+    private class RenderStage implements Runnable {
+
+        @Override
+        public void run() {
+
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+            short[] dataBuffer = mBufferPool.acquire(0);
+
+            while (!mStop && !mDecodedChunks.isDrained()) {
+
+                if (awaitFlush(true)) {
+                    continue;
+                }
+
+                if (mDecodedChunks.isEmpty() || mRenderedChunks.isFull()) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                ByteBuffer chunk = mDecodedChunks.peekBuffer();
+                int chunkLength = mDecodedChunks.peekLength();
+                long startSample = mDecodedChunks.peekStartSample();
+                mMetrics.recordDecodedChunks(mDecodedChunks.size());
+
+                if (mDataSourceSet) {
+
+                    if (chunkLength / 2 > dataBuffer.length) {
+                        mBufferPool.release(dataBuffer);
+                        dataBuffer = mBufferPool.acquire(chunkLength / 2);
+                    }
+
+                    interleaveChannels(chunk, chunkLength, dataBuffer, mDataSource, startSample);
+                }
+
+                mRenderedChunks.offer(chunk, chunkLength, startSample);
+                LockSupport.unpark(mOutputThread);
+
+                mDecodedChunks.remove();
+                LockSupport.unpark(mDecodeThread);
+            }
+
+            mRenderedChunks.close();
+            LockSupport.unpark(mOutputThread);
+            mBufferPool.release(dataBuffer);
+        }
+    }
+
+    /**
+     * Output stage: writes the rendered chunks to the AudioTrack and returns their buffers to
+     * the decoder. Only this stage blocks on the AudioTrack.
+     */
+    private class OutputStage implements Runnable {
+
+        private final AudioTrack mAudioTrack;
+
+        OutputStage(AudioTrack audioTrack) {
+            mAudioTrack = audioTrack;
+        }
+
+        @Override
+        public void run() {
+
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+            while (!mStop && !mRenderedChunks.isDrained()) {
+
+                // Pause implementation
+                waitPlay(false);
+
+                if (awaitFlush(false)) {
+                    continue;
+                }
+
+                if (mRenderedChunks.isEmpty()) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                ByteBuffer chunk = mRenderedChunks.peekBuffer();
+                int chunkLength = mRenderedChunks.peekLength();
+                mMetrics.recordRenderedChunks(mRenderedChunks.size());
+
+                // Write decoded PCM to the AudioTrack, it reads the direct buffer in place
+                writeChunk(mAudioTrack, chunk, 2 * chunkLength, mRenderedChunks.peekStartSample(), chunkLength / channels);
+
+                mRenderedChunks.remove();
+                LockSupport.unpark(mRenderThread);
+
+                mFreeChunks.offer(chunk, 0, 0);
+                LockSupport.unpark(mDecodeThread);
+            }
+        }
+    }
+
+    /**
+     * Write a chunk to the AudioTrack and advance the playback clock. The fill of the AudioTrack
+     * buffer before the write and the time the write blocks are recorded.
+     *
+     * @param audioTrack AudioTrack of the stream
+     * @param chunk 16 bit stereo pcm, read from its position on
+     * @param sizeInBytes number of bytes to write
+     * @param startSample stream sample index of the first frame of the chunk
+     * @param numFrames number of frames of the chunk
+     */
+    private void writeChunk(AudioTrack audioTrack, ByteBuffer chunk, int sizeInBytes, long startSample, int numFrames) {
+
+        mClock.onPlaybackHead(audioTrack.getPlaybackHeadPosition());
+        mMetrics.recordOutputFrames(mClock.getBufferedFrames(), mClock.getWrittenFrames() == 0);
+
+        long writeStart = System.nanoTime();
+        audioTrack.write(chunk, sizeInBytes, AudioTrack.WRITE_BLOCKING);
+        mMetrics.recordWriteNanos(System.nanoTime() - writeStart);
+        mMetrics.pollUnderruns(audioTrack, false);
+
+        mClock.onChunkWritten(startSample, numFrames);
+        mClock.onPlaybackHead(audioTrack.getPlaybackHeadPosition());
+    }
+
+    /**
+     * Read the last underrun count of the AudioTrack and release it
+     *
+     * @param audioTrack AudioTrack of the stream
+     */
+    private void releaseTrack(AudioTrack audioTrack) {
+
+        mMetrics.pollUnderruns(audioTrack, true);
+
+        audioTrack.flush();
+        audioTrack.release();
+    }
+
+    /**
+     * @return metrics of all playbacks of this stream
+     */
+    public StreamMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Set the lookahead of the pipeline stages, it applies to the next playback start. A larger
+     * lookahead bridges longer stalls of a stage, at the cost of memory.
+     *
+     * @param decodeChunks number of decoded chunks buffered for the render stage
+     * @param renderChunks number of rendered chunks buffered for the output stage
+     */
+    public void setLookahead(int decodeChunks, int renderChunks) {
+
+        if (decodeChunks <= 0 || renderChunks <= 0) {
+            throw new IllegalArgumentException("lookahead must be positive: " + decodeChunks + ", " + renderChunks);
+        }
+
+        mDecodeLookahead = decodeChunks;
+        mRenderLookahead = renderChunks;
+    }
+
+    /**
+     * @return time between decoding a chunk and hearing it in micro seconds, this includes the
+     * pipeline lookahead and the AudioTrack buffer
+     */
+    public long getLatencyMicroSecs() {
+        return (mClock != null) ? mClock.getLatencyMicroSecs() : 0;
+    }
+
+    /**
+     * @return time the written samples wait in the AudioTrack buffer in micro seconds
+     */
+    public long getOutputLatencyMicroSecs() {
+        return (mClock != null) ? mClock.getOutputLatencyMicroSecs() : 0;
+    }
+
+    /**
+     * @return number of buffers allocated by the playback loop after it started, it stays 0
+     * while streaming runs in steady state
+     */
+    public int getBufferAllocationCount() {
+        int allocationCount = 0;
+        if (mChunkPool != null) {
+            allocationCount += mChunkPool.getAllocationCount();
+        }
+        if (mBufferPool != null) {
+            allocationCount += mBufferPool.getAllocationCount();
+        }
+        return allocationCount;
+    }
+
     /**
      * Start stream playback.
      */
     private void startPlay() {
 
         if (mStreamStates.getState() == MusicStreamStates.STOPPED) {
+
+            // Bring the pcm cache up to date for the next playback, the data only stream needs none
+            if (mPcmCache != null && mDataSourceSet && !mDataOnly) {
+                mPcmCache.refreshAsync(mSourcePath, mDataSource);
+            }
+
             mStop = false;
             new Thread(this).start();
         }
@@ -343,19 +1376,28 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
     }
 
     /**
-     * Notify background Thread if player state changed.
+     * Notify background Thread if player state changed. The stages parked on their rings are
+     * woken as well, such that they see a stop, seek or flush.
      */
     private synchronized void syncNotify() {
-        notify();
+        notifyAll();
+
+        LockSupport.unpark(mDecodeThread);
+        LockSupport.unpark(mRenderThread);
+        LockSupport.unpark(mOutputThread);
     }
 
     /**
      * Synchronized wait if the player is on pause. Pause the media stream player.
      * This causes the Thread to spin in a wait loop.
+     *
+     * @param wakeOnSeek true for the decoder stage, which seeks also while paused
      */
-    private synchronized void waitPlay() {
+    private synchronized void waitPlay(boolean wakeOnSeek) {
 
-        while (mStreamStates.getState() == MusicStreamStates.READY_TO_PLAY) {
+        while (mStreamStates.getState() == MusicStreamStates.READY_TO_PLAY && !mStop
+                && !(wakeOnSeek && mPendingSeekUs.get() != NO_SEEK)
+                && (mFlushEpoch & 1) == 0) {
             try {
                 wait();
             } catch (InterruptedException e) {
@@ -369,18 +1411,19 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
      */
     private void stop() {
         mStop = true;
+        syncNotify();
     }
 
     /**
-     * Seek to closest position
+     * Seek to the position. The seek is queued for the decoder stage, which applies it between
+     * two buffers. Only the latest of several queued seeks is applied.
      *
      * @param positionInMilliSeconds position in milliseconds
      */
     private void seekTo(long positionInMilliSeconds) {
-        if (mMediaExtractor != null) {
-            // MediaExtractor expects microseconds
-            mMediaExtractor.seekTo(positionInMilliSeconds * 1000, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-        }
+        // The decoder stage expects microseconds
+        mPendingSeekUs.set(positionInMilliSeconds * 1000);
+        syncNotify();
     }
 
     private void onCompletion() {
@@ -388,6 +1431,8 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
         mStreamStates.setState(MusicStreamStates.STOPPED);
         mStop = true;
 
+        mMetrics.log();
+
         if (mEventListener != null) {
             mEventListener.stopListening(MediaPlayerListener.DEFAULT_FLAG);
         }
@@ -409,18 +1454,19 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
      *
      * Attention: This makes the song unpleasant to listen to.
      *
-     * @param chunk data buffer with the original stereo signal
+     * @param chunk direct buffer with the original 16 bit stereo signal, written in place
+     * @param chunkLength number of samples of the stereo signal in the chunk
+     * @param tmpDataBuffer buffer which will be filled with the dance sequence pcm data
      * @param dataSource data buffer with the dance sequence data
-     * @param sampleCountMicroSecs samples streamed so far
+     * @param startSample stream sample index of the first frame in the chunk
      * @return number of samples interleaved
      */
-    private int interleaveChannels(short[] chunk, StreamPlayback dataSource, long sampleCountMicroSecs) {
-
-        // Create data buffer, which will be filled with dance sequence pcm data
-        short[] tmpDataBuffer = new short[chunk.length / 2];
+    private int interleaveChannels(ByteBuffer chunk, int chunkLength, short[] tmpDataBuffer, StreamPlayback dataSource, long startSample) {
 
         // Fill dance sequence pcm data into output buffer tmpDataBuffer
-        int shortCount = dataSource.readDataStream(tmpDataBuffer, sampleCountMicroSecs);
+        long renderStart = System.nanoTime();
+        int shortCount = dataSource.readDataStream(tmpDataBuffer, chunkLength / 2, startSample);
+        mMetrics.recordRenderNanos(System.nanoTime() - renderStart);
 
         int dataBufferIdx = 0;
 
@@ -431,8 +1477,8 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
          * right channel: {58, 28, 12...}
          * stereo channel: {24, 58, 45, 28, 9, 12...}
          */
-        for (int i = 1; i < chunk.length; i+=2) {
-            chunk[i] = tmpDataBuffer[dataBufferIdx];
+        for (int i = 1; i < chunkLength; i+=2) {
+            chunk.putShort(2 * i, tmpDataBuffer[dataBufferIdx]);
             dataBufferIdx++;
         }
 
@@ -486,6 +1532,10 @@ public class DanceBotMusicStream implements Runnable, SeekBar.OnSeekBarChangeLis
 
     @Override
     public int getCurrentPosition() {
+        // The audible position, the extractor is ahead by the latency of the stream
+        if (mClock != null && isPlaying()) {
+            return (int) (mClock.getPlaybackMicroSecs() / 1000);
+        }
         if (mMediaExtractor != null) {
             return (int) mMediaExtractor.getSampleTime() / 1000;
         }
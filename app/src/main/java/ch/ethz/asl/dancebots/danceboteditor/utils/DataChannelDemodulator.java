@@ -0,0 +1,260 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * The DataChannelDemodulator decodes the PCM encoded data channel back into messages, like the
+ * robot firmware does. The signal is split into runs of constant level by edge detection, every
+ * run is classified by its length as a reset pulse, a one bit or a zero bit.
+ *
+ * The signal can be passed in chunks of any size, the decoder state is kept between calls.
+ * Decoded messages are stored with their left velocity, right velocity, led byte and the
+ * absolute sample offset of their reset pulse.
+ *
+ * The last bit of a message merges with the idle level after it, if both have the same level.
+ * Its length can not be measured then: it is decoded as a one bit and the message is marked as
+ * stretched. Such a run may also end with the reset pulse of the next message.
+ */
+public class DataChannelDemodulator {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Sample lengths of the reset pulse and the bit encodings
+    private final int mNumSamplesReset;
+    private final int mNumSamplesOne;
+    private final int mNumSamplesZero;
+
+    // Runs shorter than these lengths are zero bits, respectively one bits
+    private final int mZeroOneThreshold;
+    private final int mOneResetThreshold;
+
+    // Edge detection state
+    private long mSamplePosition;
+    private long mRunStart;
+    private int mRunSign;
+
+    // Message decoding state, mBitCount is negative while waiting for a reset pulse
+    private int mBitCount;
+    private int mPayload;
+    private long mMessageStart;
+
+    // Decoded messages
+    private int[] mPayloads;
+    private int[] mSampleOffsets;
+    private final BitSet mStretched;
+    private int mNumMessages;
+    private int mNumErrors;
+
+    /**
+     * Create a demodulator for the DanceBotConfiguration bit lengths
+     *
+     * @param sampleRate sample rate of the data channel
+     */
+    public DataChannelDemodulator(int sampleRate) {
+        this(DataChannelTimings.DEFAULT, sampleRate);
+    }
+
+    /**
+     * @param timings bit lengths of the wire format
+     * @param sampleRate sample rate of the data channel
+     */
+    public DataChannelDemodulator(DataChannelTimings timings, int sampleRate) {
+
+        mNumSamplesReset = timings.getNumSamplesReset(sampleRate);
+        mNumSamplesOne = timings.getNumSamplesOne(sampleRate);
+        mNumSamplesZero = timings.getNumSamplesZero(sampleRate);
+
+        // Decide at the middle between the nominal lengths
+        mZeroOneThreshold = (mNumSamplesZero + mNumSamplesOne + 1) / 2;
+        mOneResetThreshold = (mNumSamplesOne + mNumSamplesReset + 1) / 2;
+
+        mPayloads = new int[INITIAL_CAPACITY];
+        mSampleOffsets = new int[INITIAL_CAPACITY];
+        mStretched = new BitSet(INITIAL_CAPACITY);
+
+        reset();
+    }
+
+    /**
+     * Remove all decoded messages and restart at sample position 0
+     */
+    public void reset() {
+
+        mSamplePosition = 0;
+        mRunStart = 0;
+        mRunSign = 0;
+
+        mBitCount = -1;
+        mPayload = 0;
+        mMessageStart = 0;
+
+        mStretched.clear();
+        mNumMessages = 0;
+        mNumErrors = 0;
+    }
+
+    /**
+     * Decode the next chunk of the data channel
+     *
+     * @param dataBuffer buffer containing the pcm encoded data channel
+     * @param offset offset of the chunk in the buffer
+     * @param length number of samples of the chunk
+     * @return number of messages decoded so far
+     */
+    public int demodulate(short[] dataBuffer, int offset, int length) {
+
+        for (int i = offset; i < offset + length; ++i) {
+
+            int sign = (dataBuffer[i] >= 0) ? 1 : -1;
+
+            // An edge ends the current run
+            if (sign != mRunSign) {
+                if (mRunSign != 0) {
+                    handleRun(mRunStart, (int) (mSamplePosition - mRunStart));
+                }
+                mRunSign = sign;
+                mRunStart = mSamplePosition;
+            }
+
+            mSamplePosition++;
+        }
+
+        return mNumMessages;
+    }
+
+    /**
+     * End of the data channel, the last run is decoded
+     *
+     * @return number of messages decoded
+     */
+    public int flush() {
+
+        if (mRunSign != 0) {
+            handleRun(mRunStart, (int) (mSamplePosition - mRunStart));
+            mRunSign = 0;
+            mRunStart = mSamplePosition;
+        }
+
+        return mNumMessages;
+    }
+
+    /**
+     * Classify a run by its length and advance the message decoding
+     *
+     * @param runStart absolute sample position of the run
+     * @param runLength number of samples of the run
+     */
+    private void handleRun(long runStart, int runLength) {
+
+        if (mBitCount == DataChannelModulator.PAYLOAD_BITS - 1 && runLength > mNumSamplesOne + (mNumSamplesOne - mNumSamplesZero) / 2) {
+
+            // The last bit merged with the idle level
+            addMessage(mPayload | (0x01 << mBitCount), true);
+
+            // The run may end with the reset pulse of the next message, if the message in
+            // between was dropped, otherwise the next run is a reset pulse and restarts
+            mMessageStart = runStart + runLength - mNumSamplesReset;
+            mPayload = 0;
+            mBitCount = 0;
+
+        } else if (runLength >= mOneResetThreshold) {
+
+            // A new reset pulse, maybe merged with the idle level before it
+            if (mBitCount > 0) {
+                mNumErrors++;
+            }
+
+            mMessageStart = runStart + runLength - mNumSamplesReset;
+            mPayload = 0;
+            mBitCount = 0;
+
+        } else if (mBitCount >= 0) {
+
+            if (runLength >= mZeroOneThreshold) {
+                mPayload |= 0x01 << mBitCount;
+            }
+
+            mBitCount++;
+
+            if (mBitCount == DataChannelModulator.PAYLOAD_BITS) {
+                addMessage(mPayload, false);
+                mBitCount = -1;
+            }
+        }
+    }
+
+    private void addMessage(int payload, boolean isStretched) {
+
+        if (mNumMessages == mPayloads.length) {
+            mPayloads = Arrays.copyOf(mPayloads, 2 * mNumMessages);
+            mSampleOffsets = Arrays.copyOf(mSampleOffsets, 2 * mNumMessages);
+        }
+
+        mPayloads[mNumMessages] = payload;
+        mSampleOffsets[mNumMessages] = (int) mMessageStart;
+        mStretched.set(mNumMessages, isStretched);
+        mNumMessages++;
+    }
+
+    /**
+     * Decode a velocity byte. The most significant bit is set for positive velocities, the
+     * lower 7 bits hold the absolute value.
+     *
+     * @param velByte velocity byte
+     * @return signed velocity
+     */
+    public static int decodeVelocity(int velByte) {
+
+        int velocity = velByte & 0x7F;
+
+        if ((velByte & 0x80) == 0) {
+            velocity *= -1;
+        }
+
+        return velocity;
+    }
+
+    public int getMessageCount() {
+        return mNumMessages;
+    }
+
+    /**
+     * @return number of reset pulses that interrupted an incomplete message
+     */
+    public int getErrorCount() {
+        return mNumErrors;
+    }
+
+    public int getPayload(int msg) {
+        return mPayloads[msg];
+    }
+
+    public int getVelocityLeft(int msg) {
+        return decodeVelocity(mPayloads[msg] & 0xFF);
+    }
+
+    public int getVelocityRight(int msg) {
+        return decodeVelocity((mPayloads[msg] >> 8) & 0xFF);
+    }
+
+    public byte getLedByte(int msg) {
+        return (byte) (mPayloads[msg] >> 16);
+    }
+
+    public int getSampleOffset(int msg) {
+        return mSampleOffsets[msg];
+    }
+
+    /**
+     * @return whether the last bit of the message merged with the idle level
+     */
+    public boolean isStretched(int msg) {
+        return mStretched.get(msg);
+    }
+}
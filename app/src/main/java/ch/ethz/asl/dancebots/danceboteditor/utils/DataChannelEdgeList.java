@@ -0,0 +1,238 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * The DataChannelEdgeList is a compact (run-length) representation of the rendered data channel.
+ * Instead of the fully expanded 16-bit PCM signal, only the sample offsets of the level
+ * transitions are stored for every message. Any window of the data channel can be expanded to
+ * PCM on demand.
+ *
+ * A message consists of the reset pulse followed by 24 bits. For every message the start
+ * sample of each of these 25 runs and the end sample of the message is stored. Outside of
+ * messages the data channel stays at -DATA_LEVEL.
+ *
+ * Every message inverts the level, also a message which was dropped because it did not fit into
+ * its beat. Dropped messages are only counted, such that the level after the last message is
+ * known without expanding.
+ */
+public class DataChannelEdgeList {
+
+    // Reset pulse + 24 bits + end of message
+    public static final int EDGES_PER_MESSAGE = 2 + 3 * Byte.SIZE;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Sample lengths of the reset pulse and the bit encodings
+    private final int mNumSamplesReset;
+    private final int mNumSamplesOne;
+    private final int mNumSamplesZero;
+
+    // Transition sample offsets, EDGES_PER_MESSAGE entries per message
+    private int[] mEdges;
+    // Start level of each message (reset pulse), set if the message starts with +DATA_LEVEL
+    private final BitSet mStartLevels;
+    private int mNumMessages;
+    private int mNumDroppedMessages;
+
+    /**
+     * Create an empty edge list
+     *
+     * @param numSamplesReset number of samples of the reset pulse
+     * @param numSamplesOne number of samples of a one bit
+     * @param numSamplesZero number of samples of a zero bit
+     */
+    public DataChannelEdgeList(int numSamplesReset, int numSamplesOne, int numSamplesZero) {
+
+        mNumSamplesReset = numSamplesReset;
+        mNumSamplesOne = numSamplesOne;
+        mNumSamplesZero = numSamplesZero;
+
+        mEdges = new int[INITIAL_CAPACITY * EDGES_PER_MESSAGE];
+        mStartLevels = new BitSet(INITIAL_CAPACITY);
+        mNumMessages = 0;
+    }
+
+    /**
+     * Remove all messages
+     */
+    public void clear() {
+        mStartLevels.clear();
+        mNumMessages = 0;
+        mNumDroppedMessages = 0;
+    }
+
+    /**
+     * Append a message. Messages have to be appended in increasing sample order.
+     *
+     * @param startSample absolute sample position of the message
+     * @param payload 24-bit payload of left velocity, right velocity and led byte
+     * @param lastBitLevel last DATA_LEVEL before the message, the reset pulse inverts it
+     */
+    public void addMessage(int startSample, int payload, short lastBitLevel) {
+
+        ensureCapacity(mNumMessages + 1);
+
+        int idx = mNumMessages * EDGES_PER_MESSAGE;
+        int samplePos = startSample;
+
+        // Reset pulse
+        mEdges[idx++] = samplePos;
+        samplePos += mNumSamplesReset;
+
+        // One run per bit, least significant bit first
+        for (int i = 0; i < 3 * Byte.SIZE; ++i) {
+            mEdges[idx++] = samplePos;
+            samplePos += ((payload & (0x01 << i)) != 0) ? mNumSamplesOne : mNumSamplesZero;
+        }
+
+        // End of message
+        mEdges[idx] = samplePos;
+
+        mStartLevels.set(mNumMessages, lastBitLevel < 0);
+        mNumMessages++;
+    }
+
+    /**
+     * Count a message which was not written, because it did not fit into its beat. It still
+     * inverts the level.
+     */
+    public void dropMessage() {
+        mNumDroppedMessages++;
+    }
+
+    /**
+     * @return true if the level after the last message differs from the level before the first
+     * one, i.e. the number of written and dropped messages is odd
+     */
+    public boolean isLevelInverted() {
+        return ((mNumMessages + mNumDroppedMessages) & 1) != 0;
+    }
+
+    /**
+     * Expand a window of the data channel to PCM
+     *
+     * @param outputBuffer buffer that will be filled with the pcm encoded data channel
+     * @param outputOffset offset in the output buffer
+     * @param windowStart absolute sample position of the window start
+     * @param windowLength number of samples to expand
+     * @return number of samples written
+     */
+    public int expand(short[] outputBuffer, int outputOffset, long windowStart, int windowLength) {
+
+        long windowEnd = windowStart + windowLength;
+
+        // Samples outside of messages stay at -DATA_LEVEL
+        Arrays.fill(outputBuffer, outputOffset, outputOffset + windowLength, (short) -DanceBotConfiguration.DATA_LEVEL);
+
+        for (int msg = findFirstMessage(windowStart); msg < mNumMessages; ++msg) {
+
+            int base = msg * EDGES_PER_MESSAGE;
+
+            // All further messages start after the window
+            if (mEdges[base] >= windowEnd) {
+                break;
+            }
+
+            short level = mStartLevels.get(msg) ? DanceBotConfiguration.DATA_LEVEL : -DanceBotConfiguration.DATA_LEVEL;
+
+            for (int k = base; k < base + EDGES_PER_MESSAGE - 1; ++k) {
+
+                // Clip the run to the window
+                long runStart = Math.max(mEdges[k], windowStart);
+                long runEnd = Math.min(mEdges[k + 1], windowEnd);
+
+                if (runStart < runEnd) {
+                    Arrays.fill(outputBuffer,
+                            outputOffset + (int) (runStart - windowStart),
+                            outputOffset + (int) (runEnd - windowStart),
+                            level);
+                }
+
+                level *= -1;
+            }
+        }
+
+        return windowLength;
+    }
+
+    /**
+     * Expand a window of the data channel to PCM, such that it can be played in a loop. If the
+     * level is inverted after the window, the first message of the next repeat has to start
+     * from the other level. The window is then expanded a second time with all levels inverted,
+     * and both repeats are played in turn.
+     *
+     * @param firstRepeat buffer that will be filled with the first repeat of the window
+     * @param secondRepeat buffer that will be filled with the inverted repeat, if required
+     * @param windowStart absolute sample position of the window start
+     * @return number of repeats of the loop, 1 or 2
+     */
+    public int expandLoop(short[] firstRepeat, short[] secondRepeat, long windowStart) {
+
+        expand(firstRepeat, 0, windowStart, firstRepeat.length);
+
+        if (!isLevelInverted()) {
+            return 1;
+        }
+
+        mStartLevels.flip(0, mNumMessages);
+        expand(secondRepeat, 0, windowStart, secondRepeat.length);
+        mStartLevels.flip(0, mNumMessages);
+
+        return 2;
+    }
+
+    /**
+     * Binary search the first message, which ends after the sample position
+     *
+     * @param samplePosition absolute sample position
+     * @return message index
+     */
+    private int findFirstMessage(long samplePosition) {
+
+        int low = 0;
+        int high = mNumMessages;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mEdges[mid * EDGES_PER_MESSAGE + EDGES_PER_MESSAGE - 1] <= samplePosition) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private void ensureCapacity(int numMessages) {
+        if (numMessages * EDGES_PER_MESSAGE > mEdges.length) {
+            mEdges = Arrays.copyOf(mEdges, Math.max(numMessages, 2 * mEdges.length / EDGES_PER_MESSAGE) * EDGES_PER_MESSAGE);
+        }
+    }
+
+    public int getMessageCount() {
+        return mNumMessages;
+    }
+
+    public int getMessageStart(int msg) {
+        return mEdges[msg * EDGES_PER_MESSAGE];
+    }
+
+    public int getMessageEnd(int msg) {
+        return mEdges[msg * EDGES_PER_MESSAGE + EDGES_PER_MESSAGE - 1];
+    }
+
+    /**
+     * @return approximate memory footprint of the edge list in bytes
+     */
+    public long getSizeInBytes() {
+        return (long) mEdges.length * (Integer.SIZE / Byte.SIZE) + mStartLevels.size() / Byte.SIZE;
+    }
+}
@@ -0,0 +1,47 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Encodes a message payload into the PCM samples of the data channel. A message is a reset pulse
+ * followed by the left velocity, the right velocity and the led byte, each sent least
+ * significant bit first. Every run inverts the level, the reset pulse inverts the last level
+ * before the message.
+ *
+ * Implementations must produce identical samples for the same timings and sample rate.
+ */
+public interface DataChannelModulator {
+
+    // Number of payload bits of a message
+    int PAYLOAD_BITS = 3 * Byte.SIZE;
+
+    /**
+     * @param payload message payload of left velocity, right velocity and led byte
+     * @return the number of samples the message with this payload occupies
+     */
+    int getMessageLength(int payload);
+
+    /**
+     * Write the samples of a message, the caller ensures the message fits into the buffer
+     *
+     * @param outputBuffer buffer into which the message will be written
+     * @param offset start offset of the message in the output buffer
+     * @param payload message payload of left velocity, right velocity and led byte
+     * @param lastBitLevel last DATA_LEVEL before the message
+     * @return the written samples
+     */
+    int writeMessage(short[] outputBuffer, int offset, int payload, short lastBitLevel);
+
+    DataChannelTimings getTimings();
+
+    int getSampleRate();
+
+    int getNumSamplesReset();
+
+    int getNumSamplesOne();
+
+    int getNumSamplesZero();
+}
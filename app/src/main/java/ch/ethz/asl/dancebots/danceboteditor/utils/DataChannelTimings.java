@@ -0,0 +1,75 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Bit lengths of the data channel wire format. Lengths are given in samples at the nominal
+ * sample frequency and scaled to the decoded sample rate. The default timings are the ones of the
+ * Dance Bot hardware, firmware which accepts shorter bits can use shorter timings to send more
+ * messages per beat.
+ */
+public class DataChannelTimings {
+
+    public static final DataChannelTimings DEFAULT = new DataChannelTimings(
+            DanceBotConfiguration.BIT_LENGTH_RESET_NOMINAL,
+            DanceBotConfiguration.BIT_LENGTH_ONE_NOMINAL,
+            DanceBotConfiguration.BIT_LENGTH_ZERO_NOMINAL);
+
+    private final int mBitLengthReset;
+    private final int mBitLengthOne;
+    private final int mBitLengthZero;
+
+    /**
+     * @param bitLengthReset nominal number of samples of the reset pulse
+     * @param bitLengthOne nominal number of samples of a one bit
+     * @param bitLengthZero nominal number of samples of a zero bit
+     */
+    public DataChannelTimings(int bitLengthReset, int bitLengthOne, int bitLengthZero) {
+
+        // The decoder distinguishes bits by their length only
+        if (bitLengthZero <= 0 || bitLengthOne <= bitLengthZero || bitLengthReset <= bitLengthOne) {
+            throw new IllegalArgumentException("Bit lengths must satisfy 0 < zero < one < reset");
+        }
+
+        mBitLengthReset = bitLengthReset;
+        mBitLengthOne = bitLengthOne;
+        mBitLengthZero = bitLengthZero;
+    }
+
+    /**
+     * Compute the nominal sampling scale, such that a bit keeps its duration at any sample rate
+     *
+     * @param sampleRate decoded sample rate
+     * @return scale from nominal to decoded samples
+     */
+    private static float getSampleScale(int sampleRate) {
+        return (float) sampleRate / DanceBotConfiguration.SAMPLE_FREQUENCY_NOMINAL;
+    }
+
+    public int getNumSamplesReset(int sampleRate) {
+        return Math.round(getSampleScale(sampleRate) * mBitLengthReset);
+    }
+
+    public int getNumSamplesOne(int sampleRate) {
+        return Math.round(getSampleScale(sampleRate) * mBitLengthOne);
+    }
+
+    public int getNumSamplesZero(int sampleRate) {
+        return Math.round(getSampleScale(sampleRate) * mBitLengthZero);
+    }
+
+    public int getBitLengthReset() {
+        return mBitLengthReset;
+    }
+
+    public int getBitLengthOne() {
+        return mBitLengthOne;
+    }
+
+    public int getBitLengthZero() {
+        return mBitLengthZero;
+    }
+}
@@ -1,5 +1,7 @@
 package ch.ethz.asl.dancebots.danceboteditor.utils;
 
+import java.nio.ShortBuffer;
+
 /**
  * Created by andrin on 25.10.15.
  */
@@ -9,8 +11,18 @@ public interface Decoder {
 
     int decode();
 
+    int decodeParallel(int numThreads);
+
     int transfer(short[] pcmBuffer);
 
+    ShortBuffer getPcm();
+
+    int load(ShortBuffer pcmBuffer);
+
+    int decodeNext(ShortBuffer pcmBuffer);
+
+    long seek(long sample);
+
     int checkAudioFormat(String filePath);
 
     void close();
@@ -0,0 +1,95 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Fixed pool of direct pcm buffers in native byte order, which the AudioTrack reads without a
+ * copy to the java heap. Like the AudioBufferPool, all buffers are allocated up front, the free
+ * list is a lock free ring with one releasing and one acquiring thread and every later
+ * allocation is counted.
+ */
+public class DirectBufferPool {
+
+    // Free list, release is its producer and acquire its consumer
+    private final AudioRingBuffer<ByteBuffer> mFreeBuffers;
+    private final AtomicInteger mAllocationCount = new AtomicInteger();
+    private volatile int mBufferSize;
+
+    /**
+     * @param numBuffers number of buffers in the pool
+     * @param bufferSize number of bytes of every buffer
+     */
+    public DirectBufferPool(int numBuffers, int bufferSize) {
+
+        mFreeBuffers = new AudioRingBuffer<>(numBuffers);
+        mBufferSize = bufferSize;
+
+        for (int i = 0; i < numBuffers; ++i) {
+            mFreeBuffers.offer(allocate(bufferSize), 0, 0);
+        }
+    }
+
+    /**
+     * Take a cleared buffer from the pool. If the pool is empty or the buffer is too small, a
+     * new buffer is allocated and counted.
+     *
+     * @param minSize minimum number of bytes required
+     * @return a buffer with at least minSize bytes
+     */
+    public ByteBuffer acquire(int minSize) {
+
+        ByteBuffer buffer = null;
+
+        if (!mFreeBuffers.isEmpty()) {
+            buffer = mFreeBuffers.peekBuffer();
+            mFreeBuffers.remove();
+        }
+
+        if (buffer == null || buffer.capacity() < minSize) {
+
+            // Later allocations are at least as large as the largest request so far
+            if (minSize > mBufferSize) {
+                mBufferSize = minSize;
+            }
+
+            buffer = allocate(mBufferSize);
+            mAllocationCount.incrementAndGet();
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool, it is dropped if the pool is full
+     *
+     * @param buffer buffer acquired from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null) {
+            mFreeBuffers.offer(buffer, 0, 0);
+        }
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return number of buffers allocated after the pool was created
+     */
+    public int getAllocationCount() {
+        return mAllocationCount.get();
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+}
@@ -1,5 +1,7 @@
 package ch.ethz.asl.dancebots.danceboteditor.utils;
 
+import java.nio.ShortBuffer;
+
 /**
  * Created by andrin on 25.10.15.
  */
@@ -7,6 +9,8 @@ public interface Encoder {
 
     int encode(short[] buffer_l, short[] buffer_r, int samples, byte[] mp3buf);
 
+    int encode(ShortBuffer buffer_l, short[] buffer_r, int samples, byte[] mp3buf);
+
     int flush(byte[] mp3buf);
 
     void close();
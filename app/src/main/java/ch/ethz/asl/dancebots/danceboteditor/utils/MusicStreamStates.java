@@ -9,7 +9,7 @@ public class MusicStreamStates {
     public static final int PLAYING = 2;
     public static final int STOPPED = 3;
 
-    private int mState = STOPPED;
+    private volatile int mState = STOPPED;
 
     public void setState(int s) {
         mState = s;
@@ -0,0 +1,334 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Persistent cache of decoded songs in the cache directory of the app. A song is identified by
+ * its path, size and modification time, such that a changed file is decoded again. Each file holds
+ * a small header (sample rate, channels, samples per channel) followed by the 16 bit little endian
+ * pcm, which is memory mapped when read.
+ *
+ * The least recently used songs are deleted, when the cache grows beyond its budget.
+ */
+public class PcmDiskCache {
+
+    private static final String LOG_TAG = PcmDiskCache.class.getSimpleName();
+
+    public static final long DEFAULT_BUDGET_BYTES = 256L * 1024 * 1024;
+
+    private static final String FILE_SUFFIX = ".pcm";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x44425043;
+    private static final int VERSION = 1;
+    // magic, version, sample rate, channels, samples per channel
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8;
+
+    private final File mDirectory;
+    private volatile long mBudgetBytes;
+
+    /**
+     * @param directory directory of the cache files, created if necessary
+     * @param budgetBytes maximum size of all cache files
+     */
+    public PcmDiskCache(File directory, long budgetBytes) {
+
+        if (budgetBytes < 0) {
+            throw new IllegalArgumentException("negative budget: " + budgetBytes);
+        }
+
+        mDirectory = directory;
+        mBudgetBytes = budgetBytes;
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.d(LOG_TAG, "could not create pcm cache directory " + mDirectory);
+        }
+    }
+
+    /**
+     * Cached pcm of one song
+     */
+    public static class Entry {
+
+        private final int mSampleRate;
+        private final int mChannelCount;
+        private final int mNumSamples;
+        private final ShortBuffer mPcm;
+
+        private Entry(int sampleRate, int channelCount, int numSamples, ShortBuffer pcm) {
+            mSampleRate = sampleRate;
+            mChannelCount = channelCount;
+            mNumSamples = numSamples;
+            mPcm = pcm;
+        }
+
+        public int getSampleRate() {
+            return mSampleRate;
+        }
+
+        public int getChannelCount() {
+            return mChannelCount;
+        }
+
+        /**
+         * @return number of samples per channel
+         */
+        public int getNumSamples() {
+            return mNumSamples;
+        }
+
+        /**
+         * @return new view of the mapped pcm, channels interleaved
+         */
+        public ShortBuffer getPcm() {
+            return mPcm.duplicate();
+        }
+    }
+
+    /**
+     * Fill the decoder with the pcm of the opened song, from the cache if possible. A cached song
+     * is not copied, the decoder keeps reading the mapped file. Otherwise the song is decoded
+     * and added to the cache.
+     *
+     * @param decoder decoder which opened the song
+     * @param songPath path of the mp3 file of the song
+     * @param numThreads number of threads decoding the song, if it is not cached
+     * @return number of samples in the decoder, 0 if decoding failed
+     */
+    public int decode(Decoder decoder, String songPath, int numThreads) {
+
+        Entry entry = get(songPath);
+
+        if (entry != null) {
+
+            int numSamples = decoder.load(entry.getPcm());
+            if (numSamples > 0) {
+                Log.d(LOG_TAG, "loaded " + numSamples + " samples from the pcm cache: " + songPath);
+                return numSamples;
+            }
+        }
+
+        int result = decoder.decodeParallel(numThreads);
+
+        if (result > 0) {
+            try {
+                put(songPath, decoder.getSampleRate(), 1, decoder.getPcm());
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "Error: could not cache pcm of " + songPath + ": " + e.getMessage());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param songPath path of the mp3 file of the song
+     * @return the cached pcm of the song, null if the song is not cached
+     */
+    public Entry get(String songPath) {
+
+        File file = getCacheFile(songPath);
+
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+            try {
+                MappedByteBuffer mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+                int magic = mapped.getInt();
+                int version = mapped.getInt();
+                int sampleRate = mapped.getInt();
+                int channelCount = mapped.getInt();
+                long numSamples = mapped.getLong();
+
+                if (magic != MAGIC || version != VERSION || channelCount < 1
+                        || HEADER_SIZE + numSamples * channelCount * 2 != mapped.capacity()) {
+                    Log.d(LOG_TAG, "invalid pcm cache file " + file);
+                    deleteFile(file);
+                    return null;
+                }
+
+                // Mark as recently used
+                file.setLastModified(System.currentTimeMillis());
+
+                ShortBuffer pcm = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+
+                return new Entry(sampleRate, channelCount, (int) numSamples, pcm);
+
+            } finally {
+                // The mapping stays valid after closing the file
+                randomAccessFile.close();
+            }
+
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Error: could not read pcm cache " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Write the pcm of a song to the cache and evict the least recently used songs if the cache
+     * is over budget
+     *
+     * @param songPath path of the mp3 file of the song
+     * @param sampleRate sample rate of the pcm
+     * @param channelCount number of interleaved channels of the pcm
+     * @param pcm pcm of the song from its position to its limit
+     * @throws IOException if the cache file can not be written
+     */
+    public synchronized void put(String songPath, int sampleRate, int channelCount, ShortBuffer pcm) throws IOException {
+
+        File file = getCacheFile(songPath);
+
+        if (file == null) {
+            throw new IOException("song does not exist: " + songPath);
+        }
+
+        int numShorts = pcm.remaining();
+        long fileSize = HEADER_SIZE + 2L * numShorts;
+
+        // Write a temporary file first, such that readers never see a partial file
+        File tmpFile = new File(mDirectory, file.getName() + TMP_SUFFIX);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(tmpFile, "rw");
+
+        try {
+            randomAccessFile.setLength(fileSize);
+
+            MappedByteBuffer mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            mapped.putInt(MAGIC);
+            mapped.putInt(VERSION);
+            mapped.putInt(sampleRate);
+            mapped.putInt(channelCount);
+            mapped.putLong(numShorts / channelCount);
+            mapped.asShortBuffer().put(pcm.duplicate());
+            mapped.force();
+
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            deleteFile(tmpFile);
+            throw new IOException("could not rename " + tmpFile + " to " + file);
+        }
+
+        evict();
+    }
+
+    /**
+     * Delete the least recently used files until the cache fits into its budget
+     */
+    private synchronized void evict() {
+
+        File[] files = getCacheFiles();
+        long size = 0;
+
+        for (File file : files) {
+            size += file.length();
+        }
+
+        // Oldest first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return (l < r) ? -1 : ((l == r) ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < files.length && size > mBudgetBytes; ++i) {
+            size -= files[i].length();
+            deleteFile(files[i]);
+        }
+    }
+
+    /**
+     * @param budgetBytes maximum size of all cache files, the cache is shrunk immediately
+     */
+    public void setBudget(long budgetBytes) {
+
+        if (budgetBytes < 0) {
+            throw new IllegalArgumentException("negative budget: " + budgetBytes);
+        }
+
+        mBudgetBytes = budgetBytes;
+        evict();
+    }
+
+    public long getBudget() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * @return size of all cache files in bytes
+     */
+    public long getSize() {
+
+        long size = 0;
+        for (File file : getCacheFiles()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    /**
+     * @param songPath path of the mp3 file of the song
+     * @return cache file of the current version of the song, null if the song does not exist
+     */
+    private File getCacheFile(String songPath) {
+
+        File song = new File(songPath);
+
+        if (!song.isFile()) {
+            return null;
+        }
+
+        String name = Integer.toHexString(song.getAbsolutePath().hashCode())
+                + "_" + Long.toHexString(song.length())
+                + "_" + Long.toHexString(song.lastModified())
+                + FILE_SUFFIX;
+
+        return new File(mDirectory, name);
+    }
+
+    private File[] getCacheFiles() {
+
+        File[] files = mDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(FILE_SUFFIX);
+            }
+        });
+
+        return (files != null) ? files : new File[0];
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.d(LOG_TAG, "could not delete " + file);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import android.util.Log;
+
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+
+import de.mpg123.MPG123Decoder;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Owner of the decoded songs in memory. Decoding, beat extraction, the stream player and the
+ * export borrow a song with acquire and give it back with release. The first acquire decodes the
+ * song, or maps it from the pcm cache, later ones share the same pcm. The native memory is freed
+ * as soon as the last user released the song, a mapped song is unmapped once it is collected.
+ */
+public class PcmStore {
+
+    private static final String LOG_TAG = PcmStore.class.getSimpleName();
+
+    private final PcmDiskCache mDiskCache;
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+    // Number of threads decoding a song in segments, 1 decodes serially
+    private volatile int mDecodeThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param diskCache cache of decoded songs on disk, may be null
+     */
+    public PcmStore(PcmDiskCache diskCache) {
+        mDiskCache = diskCache;
+    }
+
+    /**
+     * Decoded song, valid until its last user released it
+     */
+    public class Entry {
+
+        private final String mSongPath;
+        private int mReferences = 0;
+        private Decoder mDecoder;
+
+        private Entry(String songPath) {
+            mSongPath = songPath;
+        }
+
+        /**
+         * Decode the song or load it from the pcm cache, called with the entry locked
+         *
+         * @return true if the pcm is available
+         */
+        private boolean load() {
+
+            Decoder decoder = new MPG123Decoder();
+
+            try {
+                decoder.openFile(mSongPath);
+            } catch (IllegalArgumentException e) {
+                Log.d(LOG_TAG, "Error: " + e.getMessage());
+                return false;
+            }
+
+            int numThreads = mDecodeThreads;
+            int result = (mDiskCache != null) ? mDiskCache.decode(decoder, mSongPath, numThreads) : decoder.decodeParallel(numThreads);
+
+            if (result <= 0) {
+                decoder.close();
+                return false;
+            }
+
+            mDecoder = decoder;
+            return true;
+        }
+
+        private synchronized void close() {
+            if (mDecoder != null) {
+                mDecoder.close();
+                mDecoder = null;
+                Log.d(LOG_TAG, "released pcm of " + mSongPath);
+            }
+        }
+
+        private Decoder getDecoder() {
+            if (mDecoder == null) {
+                throw new IllegalStateException("pcm of " + mSongPath + " is released");
+            }
+            return mDecoder;
+        }
+
+        public String getSongPath() {
+            return mSongPath;
+        }
+
+        /**
+         * @return handle of the native sound file, e.g. for the beat extraction
+         */
+        public long getHandle() {
+            return getDecoder().getHandle();
+        }
+
+        /**
+         * @return direct view of the native pcm, it must not be used after release
+         */
+        public ShortBuffer getPcm() {
+            return getDecoder().getPcm();
+        }
+
+        public int getSampleRate() {
+            return getDecoder().getSampleRate();
+        }
+
+        public long getNumberOfSamples() {
+            return getDecoder().getNumberOfSamples();
+        }
+
+        /**
+         * Borrow the song once more, e.g. for a worker thread of the current user
+         *
+         * @return this entry, null if the song was released meanwhile
+         */
+        public Entry retain() {
+            synchronized (PcmStore.this) {
+                if (mReferences == 0) {
+                    return null;
+                }
+                ++mReferences;
+                return this;
+            }
+        }
+
+        /**
+         * Give the song back, the pcm is freed with the last release
+         */
+        public void release() {
+
+            synchronized (PcmStore.this) {
+
+                if (mReferences <= 0) {
+                    throw new IllegalStateException("pcm of " + mSongPath + " released too often");
+                }
+
+                if (--mReferences > 0) {
+                    return;
+                }
+
+                mEntries.remove(mSongPath);
+            }
+
+            close();
+        }
+    }
+
+    /**
+     * Borrow the decoded song, it is decoded or loaded from the pcm cache if no one else uses it.
+     * Each successful acquire must be followed by one release.
+     *
+     * @param songPath path of the mp3 file of the song
+     * @return the decoded song, null if it could not be decoded
+     */
+    public Entry acquire(String songPath) {
+
+        Entry entry;
+
+        synchronized (this) {
+            entry = mEntries.get(songPath);
+            if (entry == null) {
+                entry = new Entry(songPath);
+                mEntries.put(songPath, entry);
+            }
+            ++entry.mReferences;
+        }
+
+        // Decode outside of the store lock, other songs stay available meanwhile
+        boolean loaded;
+        synchronized (entry) {
+            loaded = entry.mDecoder != null || entry.load();
+        }
+
+        if (!loaded) {
+            entry.release();
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Borrow the song only if someone else decoded it already
+     *
+     * @param songPath path of the mp3 file of the song
+     * @return the decoded song, null if it is not in memory
+     */
+    public Entry acquireIfLoaded(String songPath) {
+
+        Entry entry;
+
+        synchronized (this) {
+            entry = mEntries.get(songPath);
+            if (entry == null) {
+                return null;
+            }
+            ++entry.mReferences;
+        }
+
+        boolean loaded;
+        synchronized (entry) {
+            loaded = entry.mDecoder != null;
+        }
+
+        if (!loaded) {
+            entry.release();
+            return null;
+        }
+
+        return entry;
+    }
+
+    public PcmDiskCache getDiskCache() {
+        return mDiskCache;
+    }
+
+    /**
+     * @param numThreads number of threads decoding a song in frame aligned segments, 1 decodes
+     *                   the song serially
+     */
+    public void setDecodeThreads(int numThreads) {
+
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("invalid number of decode threads: " + numThreads);
+        }
+
+        mDecodeThreads = numThreads;
+    }
+
+    public int getDecodeThreads() {
+        return mDecodeThreads;
+    }
+}
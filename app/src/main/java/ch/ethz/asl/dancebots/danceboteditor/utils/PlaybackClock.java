@@ -0,0 +1,154 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Playback clock of the music stream. It assigns the exact stream sample index to every decoded
+ * chunk and maps the AudioTrack playback head back to the stream, such that the audible position
+ * and the latency between decoding and playback are known.
+ *
+ * The decoder stage calls onChunkDecoded, the output stage calls onChunkWritten and
+ * onPlaybackHead. The getters may be called from any thread.
+ */
+public class PlaybackClock {
+
+    private final int mSampleRate;
+
+    // Presentation times that deviate more than this from the counted position resync the clock
+    private final long mMaxDriftSamples;
+
+    // Decoder stage: start sample of the next decoded chunk, negative if not synced yet
+    private long mNextDecodedSample = -1;
+    private volatile long mDecodedSample = 0;
+
+    // Output stage: stream sample of AudioTrack frame 0, frames written and played
+    private long mNextWrittenSample = -1;
+    private volatile long mTrackBaseSample = 0;
+    private volatile long mWrittenFrames = 0;
+    private volatile long mPlaybackHead = 0;
+
+    /**
+     * @param sampleRate sample rate of the stream
+     */
+    public PlaybackClock(int sampleRate) {
+        mSampleRate = sampleRate;
+        mMaxDriftSamples = sampleRate / 100;
+    }
+
+    /**
+     * Decoder stage: assign the stream position of a decoded chunk. Consecutive chunks are
+     * counted sample exact, the presentation time only resyncs the clock after a discontinuity.
+     *
+     * @param presentationTimeUs presentation time of the chunk reported by the codec
+     * @param numFrames number of frames (samples per channel) of the chunk
+     * @return stream sample index of the first frame of the chunk
+     */
+    public long onChunkDecoded(long presentationTimeUs, int numFrames) {
+
+        long ptsSample = microSecsToSamples(presentationTimeUs);
+
+        if (mNextDecodedSample < 0 || Math.abs(ptsSample - mNextDecodedSample) > mMaxDriftSamples) {
+            mNextDecodedSample = ptsSample;
+        }
+
+        long startSample = mNextDecodedSample;
+        mNextDecodedSample += numFrames;
+        mDecodedSample = mNextDecodedSample;
+
+        return startSample;
+    }
+
+    /**
+     * Output stage: a chunk was written to the AudioTrack
+     *
+     * @param startSample stream sample index of the chunk
+     * @param numFrames number of frames of the chunk
+     */
+    public void onChunkWritten(long startSample, int numFrames) {
+
+        // The AudioTrack plays the written frames back to back, rebase after a discontinuity
+        if (startSample != mNextWrittenSample) {
+            mTrackBaseSample = startSample - mWrittenFrames;
+        }
+
+        mNextWrittenSample = startSample + numFrames;
+        mWrittenFrames += numFrames;
+    }
+
+    /**
+     * Output stage: update the number of frames played by the AudioTrack
+     *
+     * @param playbackHeadPosition AudioTrack.getPlaybackHeadPosition(), an unsigned frame count
+     */
+    public void onPlaybackHead(int playbackHeadPosition) {
+        mPlaybackHead = Math.min(playbackHeadPosition & 0xFFFFFFFFL, mWrittenFrames);
+    }
+
+    /**
+     * Restart the clock after the AudioTrack was flushed
+     *
+     * @param startSample stream sample index at which the playback continues
+     */
+    public void reset(long startSample) {
+        mNextDecodedSample = -1;
+        mDecodedSample = startSample;
+        mNextWrittenSample = -1;
+        mTrackBaseSample = startSample;
+        mWrittenFrames = 0;
+        mPlaybackHead = 0;
+    }
+
+    /**
+     * @return frames written to the AudioTrack, since the clock was started or reset
+     */
+    public long getWrittenFrames() {
+        return mWrittenFrames;
+    }
+
+    /**
+     * @return frames written to the AudioTrack but not played yet
+     */
+    public long getBufferedFrames() {
+        return mWrittenFrames - mPlaybackHead;
+    }
+
+    /**
+     * @return stream sample index that is audible right now
+     */
+    public long getPlaybackSample() {
+        return mTrackBaseSample + mPlaybackHead;
+    }
+
+    public long getPlaybackMicroSecs() {
+        return samplesToMicroSecs(getPlaybackSample());
+    }
+
+    /**
+     * @return time between decoding a chunk and hearing it, in micro seconds
+     */
+    public long getLatencyMicroSecs() {
+        return samplesToMicroSecs(Math.max(0, mDecodedSample - getPlaybackSample()));
+    }
+
+    /**
+     * @return time the written frames wait in the AudioTrack buffer, in micro seconds
+     */
+    public long getOutputLatencyMicroSecs() {
+        return samplesToMicroSecs(mWrittenFrames - mPlaybackHead);
+    }
+
+    /**
+     * @param microSecs stream time in micro seconds
+     * @return stream sample index, rounded to the nearest sample
+     */
+    public long microSecsToSamples(long microSecs) {
+        return (microSecs * mSampleRate + 500000) / 1000000;
+    }
+
+    private long samplesToMicroSecs(long samples) {
+        return samples * 1000000 / mSampleRate;
+    }
+}
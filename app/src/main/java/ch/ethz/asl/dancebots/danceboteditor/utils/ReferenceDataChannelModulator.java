@@ -0,0 +1,107 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Reference implementation of the data channel modulator. Every bit of the message is written
+ * sample by sample, other implementations are checked against it.
+ */
+public class ReferenceDataChannelModulator implements DataChannelModulator {
+
+    private final DataChannelTimings mTimings;
+    private final int mSampleRate;
+
+    protected final int mNumSamplesReset;
+    protected final int mNumSamplesOne;
+    protected final int mNumSamplesZero;
+
+    /**
+     * @param timings bit lengths of the wire format
+     * @param sampleRate decoded sample rate
+     */
+    public ReferenceDataChannelModulator(DataChannelTimings timings, int sampleRate) {
+
+        mTimings = timings;
+        mSampleRate = sampleRate;
+
+        // Round to the closest number of samples at this sample rate
+        mNumSamplesReset = timings.getNumSamplesReset(sampleRate);
+        mNumSamplesOne = timings.getNumSamplesOne(sampleRate);
+        mNumSamplesZero = timings.getNumSamplesZero(sampleRate);
+    }
+
+    @Override
+    public int getMessageLength(int payload) {
+
+        int numSamples = mNumSamplesReset;
+
+        for (int i = 0; i < PAYLOAD_BITS; ++i) {
+            numSamples += ((payload & (0x01 << i)) != 0) ? mNumSamplesOne : mNumSamplesZero;
+        }
+
+        return numSamples;
+    }
+
+    @Override
+    public int writeMessage(short[] outputBuffer, int offset, int payload, short lastBitLevel) {
+
+        int offsetSamples = offset;
+
+        // Invert last bit
+        lastBitLevel *= -1;
+
+        // Write reset message
+        for (int i = 0; i < mNumSamplesReset; ++i) {
+            outputBuffer[offsetSamples++] = lastBitLevel;
+        }
+
+        // Write left velocity, right velocity and led byte
+        for (int i = 0; i < PAYLOAD_BITS; ++i) {
+
+            int numSamples = mNumSamplesZero;
+
+            // Check if the i-th bit of the payload is set to 1
+            if ((payload & (0x01 << i)) != 0) {
+                numSamples = mNumSamplesOne;
+            }
+
+            // Invert last bit level
+            lastBitLevel *= -1;
+
+            // Write the number of samples required for the specific bit encoding
+            for (int j = 0; j < numSamples; ++j) {
+                outputBuffer[offsetSamples++] = lastBitLevel;
+            }
+        }
+
+        return offsetSamples - offset;
+    }
+
+    @Override
+    public DataChannelTimings getTimings() {
+        return mTimings;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getNumSamplesReset() {
+        return mNumSamplesReset;
+    }
+
+    @Override
+    public int getNumSamplesOne() {
+        return mNumSamplesOne;
+    }
+
+    @Override
+    public int getNumSamplesZero() {
+        return mNumSamplesZero;
+    }
+}
@@ -0,0 +1,333 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.mpg123.MPG123Decoder;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Pre-rendered stereo pcm file of the song, the decoded music in the left channel and the data
+ * channel in the right channel, like the exported mp3 file. The file is memory mapped, such that
+ * the stream player starts at any position without decoding.
+ *
+ * The music is decoded once. The data channel is written again when the data version of the
+ * stream source changed, only the right channel is rewritten then. Both happen in a background
+ * thread, the cache is ready after the first build.
+ */
+public class StereoPcmCache {
+
+    private static final String LOG_TAG = StereoPcmCache.class.getSimpleName();
+
+    private static final int CHANNEL_COUNT = 2;
+    private static final int DECODE_CHUNK_FRAMES = 16384;
+    private static final long NO_DATA_VERSION = Long.MIN_VALUE;
+
+    private final File mFile;
+    private final PcmStore mPcmStore;
+    private final AtomicBoolean mBuilding = new AtomicBoolean(false);
+    private boolean mReleased = false;
+
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mMappedPcm;
+    private int mSampleRate;
+    private int mNumFrames;
+
+    // Written last by the build thread, such that readers see the complete pcm
+    private volatile boolean mMusicReady = false;
+    private volatile long mDataVersion = NO_DATA_VERSION;
+
+    /**
+     * @param file file which holds the pcm cache, it is replaced
+     */
+    public StereoPcmCache(File file) {
+        this(file, null);
+    }
+
+    /**
+     * @param file file which holds the pcm cache, it is replaced
+     * @param pcmStore store of decoded songs, the music is taken from it or its disk cache
+     *                 instead of decoding the song if possible, may be null
+     */
+    public StereoPcmCache(File file, PcmStore pcmStore) {
+        mFile = file;
+        mPcmStore = pcmStore;
+    }
+
+    /**
+     * Bring the cache up to date in a background thread. Nothing happens if the cache is up to
+     * date or already being built.
+     *
+     * @param songPath path of the mp3 file of the song
+     * @param dataSource source of the data channel
+     */
+    public void refreshAsync(final String songPath, final DanceBotMusicStream.StreamPlayback dataSource) {
+
+        if (mReleased || isCurrent(dataSource.getDataVersion()) || !mBuilding.compareAndSet(false, true)) {
+            return;
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                try {
+                    refresh(songPath, dataSource);
+                } catch (IOException e) {
+                    Log.d(LOG_TAG, "Error: could not write pcm cache " + mFile + ": " + e.getMessage());
+                } finally {
+                    finishBuild();
+                }
+            }
+        }, "StereoPcmCacheBuilder").start();
+    }
+
+    /**
+     * Decode the music if necessary and write the current data channel
+     *
+     * @param songPath path of the mp3 file of the song
+     * @param dataSource source of the data channel
+     * @throws IOException if the cache file can not be written
+     */
+    private void refresh(String songPath, DanceBotMusicStream.StreamPlayback dataSource) throws IOException {
+
+        long t1 = System.currentTimeMillis();
+
+        if (!mMusicReady) {
+            writeMusic(songPath);
+        }
+
+        // Read the version first, a change while copying leaves the cache outdated
+        long dataVersion = dataSource.getDataVersion();
+
+        ShortBuffer pcm = getPcm();
+        short[] dataChannel = new short[DECODE_CHUNK_FRAMES];
+        int numFrames = 0;
+
+        // Copy the data channel window by window, it ends at the last beat at the latest
+        while (numFrames < mNumFrames) {
+
+            int numCopied = dataSource.readDataCached(dataChannel, numFrames, Math.min(DECODE_CHUNK_FRAMES, mNumFrames - numFrames));
+
+            for (int i = 0; i < numCopied; ++i) {
+                pcm.put(CHANNEL_COUNT * (numFrames + i) + 1, dataChannel[i]);
+            }
+
+            numFrames += numCopied;
+
+            if (numCopied < DECODE_CHUNK_FRAMES) {
+                break;
+            }
+        }
+
+        for (int i = numFrames; i < mNumFrames; ++i) {
+            pcm.put(CHANNEL_COUNT * i + 1, (short) -DanceBotConfiguration.DATA_LEVEL);
+        }
+
+        mDataVersion = dataVersion;
+        mMusicReady = true;
+
+        Log.d(LOG_TAG, "pcm cache written in " + (System.currentTimeMillis() - t1) + " ms, " + mNumFrames + " frames");
+    }
+
+    /**
+     * Decode the music into the left channel of a new cache file. The music is decoded chunk by
+     * chunk straight into the mapped file, such that no buffer of the whole song is needed.
+     *
+     * @param songPath path of the mp3 file of the song
+     * @throws IOException if the cache file can not be created
+     */
+    private void writeMusic(String songPath) throws IOException {
+
+        // A song someone else is using right now is borrowed from the pcm store
+        PcmStore.Entry decoded = (mPcmStore != null) ? mPcmStore.acquireIfLoaded(songPath) : null;
+
+        if (decoded != null) {
+            try {
+                mSampleRate = decoded.getSampleRate();
+                mapFile((int) decoded.getNumberOfSamples());
+
+                ShortBuffer pcm = getPcm();
+                ShortBuffer music = decoded.getPcm();
+                for (int i = 0; i < mNumFrames; ++i) {
+                    pcm.put(CHANNEL_COUNT * i, music.get(i));
+                }
+            } finally {
+                decoded.release();
+            }
+            return;
+        }
+
+        // A song decoded before is copied from the cache of decoded songs
+        PcmDiskCache diskCache = (mPcmStore != null) ? mPcmStore.getDiskCache() : null;
+        PcmDiskCache.Entry entry = (diskCache != null) ? diskCache.get(songPath) : null;
+
+        if (entry != null && entry.getChannelCount() == 1) {
+
+            mSampleRate = entry.getSampleRate();
+            mapFile(entry.getNumSamples());
+
+            ShortBuffer pcm = getPcm();
+            ShortBuffer music = entry.getPcm();
+            for (int i = 0; i < mNumFrames; ++i) {
+                pcm.put(CHANNEL_COUNT * i, music.get(i));
+            }
+            return;
+        }
+
+        Decoder mp3Decoder = new MPG123Decoder();
+        mp3Decoder.openFile(songPath);
+
+        int numFrames = (int) mp3Decoder.getNumberOfSamples();
+        mSampleRate = mp3Decoder.getSampleRate();
+        mapFile(numFrames);
+
+        ShortBuffer pcm = getPcm();
+        ShortBuffer music = ByteBuffer.allocateDirect(2 * DECODE_CHUNK_FRAMES).order(ByteOrder.nativeOrder()).asShortBuffer();
+        int frame = 0;
+
+        while (frame < numFrames) {
+
+            music.clear();
+            music.limit(Math.min(DECODE_CHUNK_FRAMES, numFrames - frame));
+
+            int numSamples = mp3Decoder.decodeNext(music);
+            if (numSamples <= 0) {
+                break;
+            }
+
+            for (int i = 0; i < numSamples; ++i) {
+                pcm.put(CHANNEL_COUNT * (frame + i), music.get(i));
+            }
+            frame += numSamples;
+        }
+
+        mp3Decoder.close();
+
+        if (frame == 0) {
+            mMappedPcm = null;
+            mRandomAccessFile.close();
+            mRandomAccessFile = null;
+            throw new IOException("decoding failed: " + songPath);
+        }
+    }
+
+    /**
+     * Map a new cache file of 16 bit little endian stereo frames
+     *
+     * @param numFrames number of frames of the song
+     * @throws IOException if the cache file can not be created
+     */
+    private void mapFile(int numFrames) throws IOException {
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mRandomAccessFile.setLength((long) numFrames * CHANNEL_COUNT * 2);
+        mMappedPcm = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) numFrames * CHANNEL_COUNT * 2);
+        mMappedPcm.order(ByteOrder.LITTLE_ENDIAN);
+        mNumFrames = numFrames;
+    }
+
+    /**
+     * @return true if the music is cached and the cache can be streamed
+     */
+    public boolean isReady() {
+        return mMusicReady;
+    }
+
+    /**
+     * @param dataVersion current data version of the stream source
+     * @return true if the cached data channel is the current one
+     */
+    public boolean isCurrent(long dataVersion) {
+        return mMusicReady && mDataVersion == dataVersion;
+    }
+
+    public long getDataVersion() {
+        return mDataVersion;
+    }
+
+    /**
+     * @return a new view of the cached stereo pcm bytes, 16 bit little endian frames with
+     * interleaved left and right samples, which the AudioTrack can read directly
+     */
+    public ByteBuffer getPcmBytes() {
+        return mMappedPcm.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private ShortBuffer getPcm() {
+        return getPcmBytes().asShortBuffer();
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getNumFrames() {
+        return mNumFrames;
+    }
+
+    public int getChannelCount() {
+        return CHANNEL_COUNT;
+    }
+
+    /**
+     * A release during the build is completed by the build thread
+     */
+    private synchronized void finishBuild() {
+
+        mBuilding.set(false);
+
+        if (mReleased) {
+            closeAndDelete();
+        }
+    }
+
+    /**
+     * Close and delete the cache file. Streams which already read from the cache keep their
+     * mapping until they end.
+     */
+    public synchronized void release() {
+
+        mReleased = true;
+
+        if (!mBuilding.get()) {
+            closeAndDelete();
+        }
+    }
+
+    private void closeAndDelete() {
+
+        mMusicReady = false;
+        mDataVersion = NO_DATA_VERSION;
+        mMappedPcm = null;
+
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mRandomAccessFile = null;
+        }
+
+        if (mFile.exists() && !mFile.delete()) {
+            Log.d(LOG_TAG, "could not delete pcm cache " + mFile);
+        }
+    }
+}
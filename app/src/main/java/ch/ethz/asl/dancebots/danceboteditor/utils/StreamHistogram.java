@@ -0,0 +1,172 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Lock free histogram of non negative values with power of two buckets. Bucket 0 counts the
+ * value 0, bucket i counts the values in [2^(i-1), 2^i). Recording a value is a few atomic
+ * increments without allocation, such that the audio threads can record every chunk. Values may
+ * be recorded and read from any thread.
+ */
+public class StreamHistogram {
+
+    private static final int NUM_BUCKETS = 64;
+
+    private final String mName;
+    private final String mUnit;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param name name of the recorded quantity
+     * @param unit unit of the recorded values
+     */
+    public StreamHistogram(String name, String unit) {
+        mName = name;
+        mUnit = unit;
+    }
+
+    /**
+     * Record a value, negative values are recorded as 0
+     *
+     * @param value recorded value
+     */
+    public void record(long value) {
+
+        if (value < 0) {
+            value = 0;
+        }
+
+        mBuckets.incrementAndGet(getBucket(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        // Raise the maximum, retry if another thread raised it meanwhile
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * @param value non negative value
+     * @return index of the bucket counting the value
+     */
+    static int getBucket(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * @param bucket bucket index
+     * @return smallest value counted by the bucket
+     */
+    static long getBucketLowerBound(int bucket) {
+        return (bucket == 0) ? 0 : 1L << (bucket - 1);
+    }
+
+    /**
+     * @param bucket bucket index
+     * @return largest value counted by the bucket
+     */
+    static long getBucketUpperBound(int bucket) {
+        return (bucket == 0) ? 0 : (1L << (bucket - 1)) + ((1L << (bucket - 1)) - 1);
+    }
+
+    /**
+     * @param percentile percentile in [0, 100]
+     * @return upper bound of the bucket which contains the percentile, 0 if nothing is recorded
+     */
+    public long getPercentile(double percentile) {
+
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            seen += mBuckets.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(getBucketUpperBound(i), getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getBucketCount(int bucket) {
+        return mBuckets.get(bucket);
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @return mean of all recorded values, 0 if nothing is recorded
+     */
+    public double getMean() {
+        long count = getCount();
+        return (count == 0) ? 0 : (double) mSum.get() / count;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Clear all buckets. Values recorded concurrently may be partially cleared.
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * @return summary line followed by one line per non empty bucket
+     */
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(mName).append(" [").append(mUnit).append("]")
+                .append(" count: ").append(getCount())
+                .append(" mean: ").append(String.format("%.1f", getMean()))
+                .append(" p50: ").append(getPercentile(50))
+                .append(" p99: ").append(getPercentile(99))
+                .append(" max: ").append(getMax())
+                .append('\n');
+
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            long bucketCount = mBuckets.get(i);
+            if (bucketCount > 0) {
+                sb.append("  ").append(getBucketLowerBound(i))
+                        .append(" - ").append(getBucketUpperBound(i))
+                        .append(": ").append(bucketCount)
+                        .append('\n');
+            }
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,183 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import android.media.AudioTrack;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Metrics of the stream pipeline: the render time of the data channel per chunk, the time
+ * AudioTrack.write blocks, the fill levels of the chunk rings and of the AudioTrack buffer, and
+ * the underruns of the AudioTrack. The audio threads record without locks and allocations, the
+ * metrics of a session can be logged or written to a file afterwards.
+ */
+public class StreamMetrics {
+
+    private static final String LOG_TAG = StreamMetrics.class.getSimpleName();
+
+    // Number of writes between two polls of the AudioTrack underrun count
+    private static final int UNDERRUN_POLL_INTERVAL = 64;
+
+    // AudioTrack.getUnderrunCount exists from API level 24 on
+    private static final boolean HAS_UNDERRUN_COUNT = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+
+    private final StreamHistogram mRenderNanos = new StreamHistogram("data channel render time per chunk", "ns");
+    private final StreamHistogram mWriteNanos = new StreamHistogram("AudioTrack.write block time", "ns");
+    private final StreamHistogram mDecodedChunks = new StreamHistogram("decoded chunks waiting for the render stage", "chunks");
+    private final StreamHistogram mRenderedChunks = new StreamHistogram("rendered chunks waiting for the output stage", "chunks");
+    private final StreamHistogram mOutputFrames = new StreamHistogram("AudioTrack buffer fill before a write", "frames");
+
+    // Writes to an AudioTrack which had played all frames written before
+    private final AtomicLong mStarvedWrites = new AtomicLong();
+
+    // Underruns reported by the AudioTrack, summed over all tracks of the session
+    private final AtomicLong mUnderruns = new AtomicLong();
+    private long mTrackUnderruns = 0;
+    private int mWritesSincePoll = 0;
+
+    public void recordRenderNanos(long nanos) {
+        mRenderNanos.record(nanos);
+    }
+
+    public void recordWriteNanos(long nanos) {
+        mWriteNanos.record(nanos);
+    }
+
+    public void recordDecodedChunks(int numChunks) {
+        mDecodedChunks.record(numChunks);
+    }
+
+    public void recordRenderedChunks(int numChunks) {
+        mRenderedChunks.record(numChunks);
+    }
+
+    /**
+     * Output thread: record the frames buffered in the AudioTrack before a write
+     *
+     * @param bufferedFrames frames written but not played yet
+     * @param isFirstWrite true for the first write after the track was started or flushed
+     */
+    public void recordOutputFrames(long bufferedFrames, boolean isFirstWrite) {
+
+        mOutputFrames.record(bufferedFrames);
+
+        if (bufferedFrames == 0 && !isFirstWrite) {
+            mStarvedWrites.incrementAndGet();
+        }
+    }
+
+    /**
+     * Output thread: a new AudioTrack is used from now on
+     */
+    public void onTrackStarted() {
+        mTrackUnderruns = 0;
+        mWritesSincePoll = 0;
+    }
+
+    /**
+     * Output thread: poll the underrun count of the AudioTrack every few writes, where the
+     * platform reports it
+     *
+     * @param audioTrack AudioTrack of the stream
+     * @param force poll regardless of the interval, e.g. before the track is released
+     */
+    public void pollUnderruns(AudioTrack audioTrack, boolean force) {
+
+        if (!HAS_UNDERRUN_COUNT || (++mWritesSincePoll < UNDERRUN_POLL_INTERVAL && !force)) {
+            return;
+        }
+
+        mWritesSincePoll = 0;
+
+        long trackUnderruns = audioTrack.getUnderrunCount();
+        mUnderruns.addAndGet(trackUnderruns - mTrackUnderruns);
+        mTrackUnderruns = trackUnderruns;
+    }
+
+    public long getStarvedWrites() {
+        return mStarvedWrites.get();
+    }
+
+    /**
+     * @return underruns reported by the AudioTrack, -1 if the platform does not report them
+     */
+    public long getUnderruns() {
+        return HAS_UNDERRUN_COUNT ? mUnderruns.get() : -1;
+    }
+
+    public StreamHistogram getRenderNanos() {
+        return mRenderNanos;
+    }
+
+    public StreamHistogram getWriteNanos() {
+        return mWriteNanos;
+    }
+
+    /**
+     * Clear all metrics, e.g. at the start of a session
+     */
+    public void reset() {
+        mRenderNanos.reset();
+        mWriteNanos.reset();
+        mDecodedChunks.reset();
+        mRenderedChunks.reset();
+        mOutputFrames.reset();
+        mStarvedWrites.set(0);
+        mUnderruns.set(0);
+    }
+
+    /**
+     * @return all metrics as text, one histogram after the other
+     */
+    public String dump() {
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("underruns: ").append(getUnderruns())
+                .append(" starved writes: ").append(getStarvedWrites())
+                .append('\n');
+        sb.append(mRenderNanos);
+        sb.append(mWriteNanos);
+        sb.append(mDecodedChunks);
+        sb.append(mRenderedChunks);
+        sb.append(mOutputFrames);
+
+        return sb.toString();
+    }
+
+    /**
+     * Write the metrics to logcat, line by line
+     */
+    public void log() {
+        for (String line : dump().split("\n")) {
+            Log.d(LOG_TAG, line);
+        }
+    }
+
+    /**
+     * Append the metrics to a file
+     *
+     * @param file metrics file
+     * @throws IOException if the file can not be written
+     */
+    public void writeTo(File file) throws IOException {
+
+        FileWriter writer = new FileWriter(file, true);
+
+        try {
+            writer.write("session end: " + System.currentTimeMillis() + "\n");
+            writer.write(dump());
+        } finally {
+            writer.close();
+        }
+    }
+}
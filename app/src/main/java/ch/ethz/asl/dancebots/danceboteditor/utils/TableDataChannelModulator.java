@@ -0,0 +1,97 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import java.util.Arrays;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Table driven data channel modulator. Every byte value and the reset pulse are pre-rendered for
+ * both polarities, such that a message is emitted with four block copies.
+ */
+public class TableDataChannelModulator extends ReferenceDataChannelModulator {
+
+    /*
+     * Symbol table, index [0] starts with +DATA_LEVEL, index [1] starts with -DATA_LEVEL
+     */
+    private final short[][] mResetSymbols;
+    private final short[][][] mByteSymbols;
+
+    /**
+     * @param timings bit lengths of the wire format
+     * @param sampleRate decoded sample rate
+     */
+    public TableDataChannelModulator(DataChannelTimings timings, int sampleRate) {
+
+        super(timings, sampleRate);
+
+        mResetSymbols = new short[2][];
+        mByteSymbols = new short[2][256][];
+
+        for (int polarity = 0; polarity < 2; ++polarity) {
+
+            short level = (polarity == 0) ? DanceBotConfiguration.DATA_LEVEL : -DanceBotConfiguration.DATA_LEVEL;
+
+            // Reset pulse is a single run of the start level
+            mResetSymbols[polarity] = new short[mNumSamplesReset];
+            Arrays.fill(mResetSymbols[polarity], level);
+
+            for (int value = 0; value < 256; ++value) {
+
+                // Compute the total length of the byte symbol
+                int numSamples = 0;
+                for (int i = 0; i < Byte.SIZE; ++i) {
+                    numSamples += ((value & (0x01 << i)) != 0) ? mNumSamplesOne : mNumSamplesZero;
+                }
+
+                short[] symbol = new short[numSamples];
+                short bitLevel = level;
+                int offset = 0;
+
+                // Write one run per bit and invert the level after every bit
+                for (int i = 0; i < Byte.SIZE; ++i) {
+                    int bitSamples = ((value & (0x01 << i)) != 0) ? mNumSamplesOne : mNumSamplesZero;
+                    Arrays.fill(symbol, offset, offset + bitSamples, bitLevel);
+                    offset += bitSamples;
+                    bitLevel *= -1;
+                }
+
+                mByteSymbols[polarity][value] = symbol;
+            }
+        }
+    }
+
+    @Override
+    public int getMessageLength(int payload) {
+        return mNumSamplesReset
+                + mByteSymbols[0][payload & 0xFF].length
+                + mByteSymbols[0][(payload >> 8) & 0xFF].length
+                + mByteSymbols[0][(payload >> 16) & 0xFF].length;
+    }
+
+    @Override
+    public int writeMessage(short[] outputBuffer, int offset, int payload, short lastBitLevel) {
+
+        // The reset pulse inverts the last bit, the first payload bit inverts it once more
+        int bytePolarity = (lastBitLevel > 0) ? 0 : 1;
+        short[] reset = mResetSymbols[1 - bytePolarity];
+        short[][] symbols = mByteSymbols[bytePolarity];
+
+        int offsetSamples = offset;
+
+        // Write reset message
+        System.arraycopy(reset, 0, outputBuffer, offsetSamples, reset.length);
+        offsetSamples += reset.length;
+
+        // Every byte has an even number of bits, thus all bytes start with the same polarity
+        for (int shift = 0; shift < PAYLOAD_BITS; shift += Byte.SIZE) {
+            short[] symbol = symbols[(payload >> shift) & 0xFF];
+            System.arraycopy(symbol, 0, outputBuffer, offsetSamples, symbol.length);
+            offsetSamples += symbol.length;
+        }
+
+        return offsetSamples - offset;
+    }
+}
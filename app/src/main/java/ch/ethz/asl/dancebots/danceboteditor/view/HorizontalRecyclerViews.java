@@ -224,6 +224,13 @@ public class HorizontalRecyclerViews implements
         ledAdapter.notifyDataSetChanged();
     }
 
+    /**
+     * @return first and last beat selected in the led view, or null if nothing is selected
+     */
+    public int[] getSelectedBeatRange() {
+        return ((BeatElementAdapter) mLedView.getAdapter()).getSelectedRange();
+    }
+
     public int getFirstVisibleItem() {
         return mMotorLayoutManager.findFirstVisibleItemPosition();
     }
@@ -245,5 +252,7 @@ public class HorizontalRecyclerViews implements
 
     @Override
     public void onLongClick(int index) {
+        // Start selecting a beat range, e.g. for the loop playback
+        mLedView.setDragSelectActive(true, index);
     }
 }
@@ -2,6 +2,10 @@ package de.mpg123;
 
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
 import ch.ethz.asl.dancebots.danceboteditor.utils.DanceBotError;
 import ch.ethz.asl.dancebots.danceboteditor.utils.Decoder;
 
@@ -12,9 +16,19 @@ public class MPG123Decoder implements Decoder {
 
     private static final String LOG_TAG = "DECODER";
 
+    // Maximum number of samples decodeNext decodes into a buffer, which is not a native one
+    private static final int DECODE_BUFFER_SAMPLES = 16384;
+
     // Pointer of the sound file handle used by the native decoder implementation
     private long mSoundFileHandle;
 
+    // Native buffer for decodeNext, allocated on first use
+    private ShortBuffer mDecodeBuffer;
+
+    // Pcm decoded before, e.g. a mapped cache file, which the native sound file reads in place.
+    // The reference keeps a mapping alive until the decoder is closed.
+    private ShortBuffer mLoadedPcm;
+
     public MPG123Decoder()
     {
         // Initialize sound handle to "null"
@@ -42,14 +56,47 @@ public class MPG123Decoder implements Decoder {
 
     @Override
     public int decode() {
+        mLoadedPcm = null;
         return decode(mSoundFileHandle);
     }
 
+    /**
+     * Decode the whole file like decode, split into frame aligned segments which are decoded on
+     * separate threads. The frame index of one scan over the file lets every segment seek to its
+     * start directly, each segment starts a few frames early to fill the bit reservoir.
+     *
+     * @param numThreads number of segments decoded in parallel, 1 decodes serially
+     * @return number of samples processed like decode, 0 if decoding failed
+     */
+    @Override
+    public int decodeParallel(int numThreads) {
+
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("invalid number of decode threads: " + numThreads);
+        }
+
+        mLoadedPcm = null;
+
+        if (numThreads == 1) {
+            return decode(mSoundFileHandle);
+        }
+
+        int result = decodeParallel(mSoundFileHandle, numThreads);
+
+        if (result < 0) {
+            // The file could not be split into segments, e.g. it has no frame index
+            Log.d(LOG_TAG, "parallel decoding not possible, decode serially");
+            return decode(mSoundFileHandle);
+        }
+
+        return result;
+    }
+
     /**
      * Transfer method to fill the java buffer with the native decoded pcm audio channel
      *
      * Attention: This implementation is not so nice, at it uses a tremendously high amount
-     * of memory. If possible change this to a deocder stream
+     * of memory. Use getPcm or decodeNext instead, where possible
      *
      * @param pcmBuffer java short buffer that will be filled with pcm bytes
      * @return number of samples (shorts) transferred
@@ -59,6 +106,100 @@ public class MPG123Decoder implements Decoder {
         return transfer(mSoundFileHandle, pcmBuffer);
     }
 
+    /**
+     * Native pcm audio channel of the decoded file, wrapped without a copy. It stays valid until
+     * close is called and must not be used afterwards.
+     *
+     * @return direct buffer of all samples, null if decode was not called successfully
+     */
+    @Override
+    public ShortBuffer getPcm() {
+
+        if (mLoadedPcm != null) {
+            return mLoadedPcm.duplicate();
+        }
+
+        ByteBuffer pcm = getPcm(mSoundFileHandle);
+
+        return (pcm != null) ? pcm.order(ByteOrder.nativeOrder()).asShortBuffer() : null;
+    }
+
+    /**
+     * Use a copy decoded before, e.g. a mapped cache file, as the decoded pcm audio channel
+     * instead of calling decode. The samples are not copied, the native sound file and getPcm
+     * read the buffer in place until the decoder is closed.
+     *
+     * @param pcmBuffer all samples of the opened file from its position on, direct buffer in
+     *                  native byte order
+     * @return number of samples (shorts) loaded, 0 if the buffer does not match the opened file
+     */
+    @Override
+    public int load(ShortBuffer pcmBuffer) {
+
+        if (!pcmBuffer.isDirect() || pcmBuffer.order() != ByteOrder.nativeOrder()) {
+            return 0;
+        }
+
+        int numSamples = load(mSoundFileHandle, pcmBuffer, pcmBuffer.position(), pcmBuffer.remaining());
+
+        if (numSamples > 0) {
+            mLoadedPcm = pcmBuffer.slice();
+        }
+
+        return numSamples;
+    }
+
+    /**
+     * Decode the next samples of the opened file, without decoding the whole file first. The
+     * channels are mixed down like transfer does, only a buffer of one mp3 frame is used natively.
+     *
+     * @param pcmBuffer buffer that will be filled from its position on, the position is moved
+     *                  behind the decoded samples. Direct buffers in native byte order are written
+     *                  in place, others in steps of at most DECODE_BUFFER_SAMPLES samples
+     * @return number of samples (shorts) decoded, 0 at the end of the file, -1 on an error
+     */
+    @Override
+    public int decodeNext(ShortBuffer pcmBuffer) {
+
+        // Native code writes direct buffers in place
+        if (pcmBuffer.isDirect() && pcmBuffer.order() == ByteOrder.nativeOrder()) {
+
+            int numSamples = decodeNext(mSoundFileHandle, pcmBuffer, pcmBuffer.position(), pcmBuffer.remaining());
+            if (numSamples > 0) {
+                pcmBuffer.position(pcmBuffer.position() + numSamples);
+            }
+            return numSamples;
+        }
+
+        if (mDecodeBuffer == null) {
+            mDecodeBuffer = ByteBuffer.allocateDirect(2 * DECODE_BUFFER_SAMPLES).order(ByteOrder.nativeOrder()).asShortBuffer();
+        }
+
+        int numSamples = decodeNext(mSoundFileHandle, mDecodeBuffer, 0, Math.min(pcmBuffer.remaining(), DECODE_BUFFER_SAMPLES));
+        if (numSamples > 0) {
+            mDecodeBuffer.clear();
+            mDecodeBuffer.limit(numSamples);
+            pcmBuffer.put(mDecodeBuffer);
+        }
+        return numSamples;
+    }
+
+    /**
+     * Move decodeNext to a sample of the opened file
+     *
+     * @param sample sample index of one channel
+     * @return sample index at which decodeNext continues, negative if seeking failed
+     */
+    @Override
+    public long seek(long sample) {
+
+        if (sample < 0) {
+            throw new IllegalArgumentException("negative sample index: " + sample);
+        }
+
+        return seek(mSoundFileHandle, sample);
+    }
+
     /**
      * Check the audio format of a file at a given path
      *
@@ -95,6 +236,7 @@ public class MPG123Decoder implements Decoder {
             cleanUp(mSoundFileHandle);
             mSoundFileHandle = 0;
         }
+        mLoadedPcm = null;
     }
 
     @Override
@@ -119,7 +261,17 @@ public class MPG123Decoder implements Decoder {
     private native static long open(String filePath);
     // Decode the currently opened music file
     private native static int decode(long soundFileHandle);
+    // Decode the currently opened music file in segments on multiple threads
+    private native static int decodeParallel(long soundFileHandle, int numThreads);
     private native static int transfer(long soundFileHandle, short[] pcmBuffer);
+    // Wrap the decoded pcm of the currently opened music file
+    private native static ByteBuffer getPcm(long soundFileHandle);
+    // Load previously decoded pcm of the currently opened music file
+    private native static int load(long soundFileHandle, ShortBuffer pcmBuffer, int offset, int length);
+    // Decode the next samples of the currently opened music file into a direct buffer
+    private native static int decodeNext(long soundFileHandle, ShortBuffer pcmBuffer, int offset, int length);
+    // Move the decoding position of the currently opened music file
+    private native static long seek(long soundFileHandle, long sample);
     // Delete native sound file
     private native static int cleanUp(long mSoundFileHandle);
     // Check audio format
@@ -24,6 +24,9 @@ package net.lame;
  * 3. This notice may not be removed or altered from any source distribution.
  */
 
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
 import ch.ethz.asl.dancebots.danceboteditor.utils.Encoder;
 
 /**
@@ -221,6 +224,34 @@ public class LameEncoder implements Encoder {
         return encode(mInstanceIndex, buffer_l, buffer_r, samples, mp3buf);
     }
 
+    /**
+     * Encode buffer to mp3, the left channel is read in place from a direct buffer.
+     *
+     * @param buffer_l PCM data for left channel, direct buffer in native byte order, read from
+     *            its start.
+     * @param buffer_r PCM data for right channel.
+     * @param samples number of samples per channel.
+     * @param mp3buf result encoded MP3 stream. You must specified
+     *            "7200 + (1.25 * samples)" length array.
+     * @return number of bytes output in mp3buf. Can be 0.<br />
+     *         -1: mp3buf was too small<br />
+     *         -2: malloc() problem<br />
+     *         -3: lame_init_params() not called<br />
+     *         -4: psycho acoustic problems
+     */
+    @Override
+    public int encode(ShortBuffer buffer_l, short[] buffer_r, int samples, byte[] mp3buf) {
+
+        if (!buffer_l.isDirect() || buffer_l.order() != ByteOrder.nativeOrder()) {
+            throw new IllegalArgumentException("left channel is not a native direct buffer");
+        }
+        if (samples > buffer_l.capacity() || samples > buffer_r.length) {
+            throw new IllegalArgumentException("more samples than pcm data: " + samples);
+        }
+
+        return encodeDirect(mInstanceIndex, buffer_l, buffer_r, samples, mp3buf);
+    }
+
     /**
      * Encode buffer L & R channel data interleaved to mp3.
      *
@@ -300,6 +331,19 @@ public class LameEncoder implements Encoder {
     private native static int encode(int instanceIndex, short[] buffer_l, short[] buffer_r,
                                      int samples, byte[] mp3buf);
 
+    /**
+     * Encode buffer to mp3, the left channel is read in place from a direct buffer.
+     *
+     * @param instanceIndex Instance index.
+     * @param buffer_l PCM data for left channel, direct buffer.
+     * @param buffer_r PCM data for right channel.
+     * @param samples number of samples per channel.
+     * @param mp3buf result encoded MP3 stream.
+     * @return number of bytes output in mp3buf. Can be 0.
+     */
+    private native static int encodeDirect(int instanceIndex, ShortBuffer buffer_l, short[] buffer_r,
+                                           int samples, byte[] mp3buf);
+
     /**
      * Encode buffer L & R channel data interleaved to mp3.
      *
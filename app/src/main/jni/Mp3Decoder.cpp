@@ -1,4 +1,6 @@
 #include <stdlib.h>
+#include <string.h>
+#include <pthread.h>
 #include <android/log.h>
 
 #include "Mp3Decoder.h"
@@ -7,17 +9,39 @@ static const char* LOG_TAG = "NATIVE_MP3_DECODER";
 
 static Mp3Decoder m_Mp3Decoder;
 
+// Frames decoded in front of every segment and dropped. The layer 3 bit reservoir reaches up to
+// 511 bytes back, which are several frames at low bit rates, mpg123 adds its own preframes on top
+static const int WARMUP_FRAMES = 4;
+
+/**
+ * Part of the song decoded by one thread, with its own mpg123 handle
+ */
+struct DecodeSegment {
+
+    SoundFile* sound_file;
+
+    // Frame index of the whole song, only read by the segments
+    off_t* index_offsets;
+    off_t index_step;
+    size_t index_fill;
+    int spf;
+
+    // Samples [begin, end) of one channel, written to the music buffer
+    long begin;
+    long end;
+    bool is_last;
+
+    int err;
+};
+
 /**
  * TODO comment
  */
-Mp3Decoder::Mp3Decoder() :
-    m_mh(NULL)
+Mp3Decoder::Mp3Decoder()
 {}
 
 Mp3Decoder::~Mp3Decoder() {
-    // It's to late for error checks here
-    mpg123_close(m_mh);
-    mpg123_delete(m_mh);
+    // It's to late for error checks here, the handles are closed with their sound files
     mpg123_exit();
 }
 
@@ -48,48 +72,49 @@ JNIEXPORT jlong JNICALL Java_de_mpg123_MPG123Decoder_open
     int encoding;
     size_t buffer_size;
 
-    // Create new mpg123 handle
-    m_Mp3Decoder.m_mh = mpg123_new(NULL, &err);
-    __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "mpg123_new: %p", m_Mp3Decoder.m_mh);
+    // Create new mpg123 handle, it is owned by the sound file
+    mpg123_handle* mh = mpg123_new(NULL, &err);
+    __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "mpg123_new: %p", mh);
 
-    if (err == MPG123_OK && m_Mp3Decoder.m_mh != NULL) {
+    if (err == MPG123_OK && mh != NULL) {
 
         // Get the utf-8 string
         const char *file_path = env->GetStringUTFChars(path_to_file, JNI_FALSE);
 
         // Create new sound file and assign it to private Mp3Decoder field
         SoundFile *sound_file = new SoundFile(file_path);
+        sound_file->mh = mh;
 
         __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Sound file path: %s",
                             sound_file->file_path);
 
-        err = mpg123_open(m_Mp3Decoder.m_mh, sound_file->file_path);
+        err = mpg123_open(sound_file->mh, sound_file->file_path);
 
         // The jni string can now be released
         //env->ReleaseStringUTFChars(path_to_file, file_path);
 
         if (err == MPG123_OK) {
 
-            err = mpg123_getformat(m_Mp3Decoder.m_mh, &rate, &channels, &encoding);
+            err = mpg123_getformat(sound_file->mh, &rate, &channels, &encoding);
 
             if (err == MPG123_OK) {
 
                 // Reset internal format table and only allow specific encodings
-                mpg123_format_none(m_Mp3Decoder.m_mh);
+                mpg123_format_none(sound_file->mh);
 
                 // TODO: remove this: Force 32 bit float encoding
                 //mp3->encoding = MPG123_ENC_FLOAT_32;
                 encoding = MPG123_ENC_SIGNED_16;
 
                 // Set fixed format
-                mpg123_format(m_Mp3Decoder.m_mh, rate, channels, encoding);
+                mpg123_format(sound_file->mh, rate, channels, encoding);
 
                 // Store the maximum buffer size that is possible
                 // The buffer will be needed in the reading/decoding step
-                buffer_size = mpg123_outblock(m_Mp3Decoder.m_mh);
+                buffer_size = mpg123_outblock(sound_file->mh);
 
                 // Store number of samples of one channel of current track
-                num_samples = mpg123_length(m_Mp3Decoder.m_mh);
+                num_samples = mpg123_length(sound_file->mh);
 
                 // TODO: if sound file init fails, what to do?
                 // Everything was properly loaded with mpg123. Initialize sound file
@@ -104,7 +129,7 @@ JNIEXPORT jlong JNICALL Java_de_mpg123_MPG123Decoder_open
                 __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Error: mpg123_getformat err: %i",
                                     err);
                 __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Trouble with mpg123: %s",
-                                    mpg123_strerror(m_Mp3Decoder.m_mh));
+                                    mpg123_strerror(sound_file->mh));
             }
 
         } else {
@@ -130,7 +155,8 @@ JNIEXPORT jint JNICALL Java_de_mpg123_MPG123Decoder_decode
     // Load sound file TODO: Check for NULL?
     SoundFile *sound_file = (SoundFile *)sound_file_handle;
 
-    // Load pcm buffer
+    // Load pcm buffer, it holds the whole song
+    sound_file->allocatePcm();
     short* dest = sound_file->pcm_buffer;
 
     int err = MPG123_OK;
@@ -148,7 +174,7 @@ JNIEXPORT jint JNICALL Java_de_mpg123_MPG123Decoder_decode
         if (sound_file->left_samples <= 0)
         {
             size_t done = 0;
-            err = mpg123_read( m_Mp3Decoder.m_mh, sound_file->buffer, sound_file->buffer_size, &done );
+            err = mpg123_read( sound_file->mh, sound_file->buffer, sound_file->buffer_size, &done );
 
             // TODO: this is fixed to short encoding (MPG123_ENC_SIGNED_16)
             sound_file->left_samples = done / sizeof(short);
@@ -212,6 +238,385 @@ JNIEXPORT jint JNICALL Java_de_mpg123_MPG123Decoder_transfer
     return idx;
 }
 
+/**
+ * Wrap the decoded music channel into a direct byte buffer, Java reads it without a copy.
+ * The buffer is owned by the sound file and must not be used after cleanUp.
+ *
+ * Returns NULL if the whole file was not decoded yet
+ */
+JNIEXPORT jobject JNICALL Java_de_mpg123_MPG123Decoder_getPcm
+        (JNIEnv *env, jobject self, jlong sound_file_handle)
+{
+    SoundFile *sound_file = (SoundFile *)sound_file_handle;
+
+    if (sound_file->music_buffer == NULL)
+    {
+        return NULL;
+    }
+
+    return env->NewDirectByteBuffer(sound_file->music_buffer, sound_file->num_samples * sizeof(short));
+}
+
+/**
+ * Use previously decoded pcm, e.g. a mapped cache file, as the music channel instead of decoding
+ * the file. The pcm is not copied, the caller keeps it valid until the sound file is cleaned up.
+ * Only the music channel is set, the beat extraction reads nothing else.
+ *
+ * Returns the number of samples loaded, 0 if the pcm does not match the opened file
+ */
+JNIEXPORT jint JNICALL Java_de_mpg123_MPG123Decoder_load
+        (JNIEnv *env, jobject self, jlong sound_file_handle, jobject pcm, jint offset, jint length)
+{
+    SoundFile *sound_file = (SoundFile *)sound_file_handle;
+
+    short* src = (short*) env->GetDirectBufferAddress(pcm);
+    jlong capacity = env->GetDirectBufferCapacity(pcm);
+
+    if (src == NULL || length != sound_file->num_samples || offset < 0 || (jlong) offset + length > capacity)
+    {
+        __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Error: cannot load %i samples, expected %li", length, sound_file->num_samples);
+        return 0;
+    }
+
+    if (sound_file->owns_music_buffer)
+    {
+        delete[] sound_file->music_buffer;
+    }
+
+    sound_file->music_buffer = src + offset;
+    sound_file->owns_music_buffer = false;
+
+    return length;
+}
+
+/**
+ * Decode the next frames of the song into a direct buffer, the channels are mixed down like
+ * the whole file decoding does. Only the decode buffer of the sound file is used, such that the
+ * memory does not grow with the length of the song.
+ *
+ * Returns the number of samples written, 0 at the end of the song and -1 on a decoding error.
+ */
+JNIEXPORT jint JNICALL Java_de_mpg123_MPG123Decoder_decodeNext
+        (JNIEnv *env, jobject self, jlong sound_file_handle, jobject pcm, jint offset, jint length)
+{
+    SoundFile *sound_file = (SoundFile *)sound_file_handle;
+
+    short* base = (short*) env->GetDirectBufferAddress(pcm);
+
+    if (base == NULL || sound_file->channels < 1)
+    {
+        return -1;
+    }
+
+    // The samples must fit into the buffer, the capacity of a ShortBuffer counts shorts
+    jlong capacity = env->GetDirectBufferCapacity(pcm);
+
+    if (offset < 0 || length < 0 || (jlong) offset + length > capacity)
+    {
+        __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Error: cannot decode %i samples at %i into a buffer of %li samples", length, offset, (long) capacity);
+        return -1;
+    }
+
+    short* dest = base + offset;
+
+    int channels = sound_file->channels;
+    int idx = 0;
+
+    while (idx < length)
+    {
+        if (sound_file->left_samples < (size_t) channels)
+        {
+            size_t done = 0;
+            int err = mpg123_read(sound_file->mh, sound_file->buffer, sound_file->buffer_size, &done);
+
+            // TODO: this is fixed to short encoding (MPG123_ENC_SIGNED_16)
+            sound_file->left_samples = done / sizeof(short);
+            sound_file->offset = 0;
+
+            if (err == MPG123_DONE && done == 0)
+            {
+                break;
+            }
+            else if (err != MPG123_OK && err != MPG123_DONE && err != MPG123_NEW_FORMAT)
+            {
+                __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Error: mpg123_read err: %i", err);
+                return (idx > 0) ? idx : -1;
+            }
+        }
+        else
+        {
+            short* src = ((short*)sound_file->buffer) + sound_file->offset;
+
+            for ( ; idx < length && sound_file->left_samples >= (size_t) channels; ++idx, src += channels)
+            {
+                // Same mix down as SoundFile::interleaveChannels
+                dest[idx] = (channels == 2) ? (src[0] + src[1]) / 2 : src[0];
+
+                sound_file->left_samples -= channels;
+                sound_file->offset += channels;
+            }
+        }
+    }
+
+    return idx;
+}
+
+/**
+ * Move the incremental decoding to a sample of one channel. Decoded but not yet read samples are
+ * dropped.
+ *
+ * Returns the sample the next decodeNext starts at, or a negative mpg123 error code
+ */
+JNIEXPORT jlong JNICALL Java_de_mpg123_MPG123Decoder_seek
+        (JNIEnv *env, jobject self, jlong sound_file_handle, jlong sample)
+{
+    SoundFile *sound_file = (SoundFile *)sound_file_handle;
+
+    off_t position = mpg123_seek(sound_file->mh, (off_t) sample, SEEK_SET);
+
+    sound_file->left_samples = 0;
+    sound_file->offset = 0;
+
+    if (position < 0)
+    {
+        __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Error: mpg123_seek err: %li", (long) position);
+    }
+
+    return position;
+}
+
+/**
+ * Decode one segment into its region of the music buffer. The decoding starts WARMUP_FRAMES
+ * frames before the segment, such that the bit reservoir is filled at its first sample.
+ */
+static void* decodeSegment(void* arg)
+{
+    DecodeSegment* segment = (DecodeSegment*) arg;
+    SoundFile* sound_file = segment->sound_file;
+
+    int err = MPG123_OK;
+
+    // Properties
+    int channels = 0;
+    long rate;
+    int encoding;
+
+    unsigned char* buffer = NULL;
+    long idx = segment->begin;
+
+    mpg123_handle* mh = mpg123_new(NULL, &err);
+
+    if (err != MPG123_OK || mh == NULL)
+    {
+        __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Error: mpg123_new err: %i", err);
+        segment->err = MPG123_ERR;
+        return NULL;
+    }
+
+    err = mpg123_open(mh, sound_file->file_path);
+
+    if (err == MPG123_OK)
+    {
+        err = mpg123_getformat(mh, &rate, &channels, &encoding);
+    }
+
+    if (err == MPG123_OK)
+    {
+        // Same fixed format as the sound file
+        mpg123_format_none(mh);
+        err = mpg123_format(mh, rate, channels, MPG123_ENC_SIGNED_16);
+    }
+
+    if (err == MPG123_OK)
+    {
+        // Seek with the index of the whole song, instead of parsing all frames in front
+        err = mpg123_set_index(mh, segment->index_offsets, segment->index_step, segment->index_fill);
+    }
+
+    if (err == MPG123_OK)
+    {
+        long warmup_begin = segment->begin - WARMUP_FRAMES * segment->spf;
+        off_t position = mpg123_seek(mh, (warmup_begin > 0) ? warmup_begin : 0, SEEK_SET);
+
+        if (position < 0 || position > segment->begin)
+        {
+            __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Error: mpg123_seek to %li: %li", segment->begin, (long) position);
+            err = MPG123_ERR;
+        }
+        else
+        {
+            // Interleaved samples of the warm-up, which are dropped
+            size_t skip = (segment->begin - position) * channels;
+
+            size_t buffer_size = mpg123_outblock(mh);
+            buffer = (unsigned char*) malloc(buffer_size);
+
+            short* dest = sound_file->music_buffer;
+
+            while (idx < segment->end && err == MPG123_OK)
+            {
+                size_t done = 0;
+                err = mpg123_read(mh, buffer, buffer_size, &done);
+
+                if (err == MPG123_NEW_FORMAT)
+                {
+                    err = MPG123_OK;
+                }
+
+                // TODO: this is fixed to short encoding (MPG123_ENC_SIGNED_16)
+                short* src = (short*) buffer;
+                size_t num = done / sizeof(short);
+                size_t i = (skip < num) ? skip : num;
+                skip -= i;
+
+                for ( ; i + channels <= num && idx < segment->end; i += channels, ++idx)
+                {
+                    // Same mix down as SoundFile::interleaveChannels
+                    dest[idx] = (channels == 2) ? (src[i] + src[i + 1]) / 2 : src[i];
+                }
+            }
+
+            if (idx < segment->end && err == MPG123_DONE && segment->is_last)
+            {
+                // The song is shorter than its expected length, like in the whole file decoding
+                __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "song ended %li samples early", segment->end - idx);
+                memset(dest + idx, 0, (segment->end - idx) * sizeof(short));
+                idx = segment->end;
+            }
+        }
+    }
+
+    if (idx < segment->end)
+    {
+        __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Error: decoding segment [%li, %li) failed at %li, err: %i",
+                            segment->begin, segment->end, idx, err);
+        segment->err = (err != MPG123_OK) ? err : MPG123_ERR;
+    }
+    else
+    {
+        segment->err = MPG123_OK;
+    }
+
+    free(buffer);
+    mpg123_close(mh);
+    mpg123_delete(mh);
+
+    return NULL;
+}
+
+/**
+ * Decode the whole file like decode, but in frame aligned segments on num_segments threads.
+ * The frame index of one scan over the file lets every segment seek directly to its start.
+ * Only the mixed down music channel is filled, the interleaved pcm buffer is not needed.
+ *
+ * Returns the number of samples processed like decode, 0 if decoding failed and -1 if the file
+ * can not be split into segments, e.g. because it is not seekable
+ */
+JNIEXPORT jint JNICALL Java_de_mpg123_MPG123Decoder_decodeParallel
+        (JNIEnv *env, jobject self, jlong sound_file_handle, jint num_segments)
+{
+    SoundFile *sound_file = (SoundFile *)sound_file_handle;
+
+    if (num_segments < 1 || sound_file->channels < 1 || sound_file->num_samples <= 0)
+    {
+        return -1;
+    }
+
+    // Parse all frame headers once, this fills the frame index and moves back to the start
+    int err = mpg123_scan(sound_file->mh);
+
+    off_t* index_offsets = NULL;
+    off_t index_step = 0;
+    size_t index_fill = 0;
+
+    if (err == MPG123_OK)
+    {
+        err = mpg123_index(sound_file->mh, &index_offsets, &index_step, &index_fill);
+    }
+
+    int spf = mpg123_spf(sound_file->mh);
+
+    if (err != MPG123_OK || index_fill == 0 || spf <= 0)
+    {
+        __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Error: no frame index, err: %i: %s",
+                            err, mpg123_strerror(sound_file->mh));
+        return -1;
+    }
+
+    // Every segment gets the same number of whole frames, short songs get fewer segments
+    long num_frames = (sound_file->num_samples + spf - 1) / spf;
+    long frames_per_segment = (num_frames + num_segments - 1) / num_segments;
+    int count = (int) ((num_frames + frames_per_segment - 1) / frames_per_segment);
+
+    __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "decode %li frames in %i segments of %li frames",
+                        num_frames, count, frames_per_segment);
+
+    sound_file->allocateMusic();
+
+    DecodeSegment* segments = new DecodeSegment[count];
+    pthread_t* threads = new pthread_t[count];
+    bool* started = new bool[count];
+
+    for (int i = 0; i < count; ++i)
+    {
+        DecodeSegment* segment = &segments[i];
+
+        segment->sound_file = sound_file;
+        segment->index_offsets = index_offsets;
+        segment->index_step = index_step;
+        segment->index_fill = index_fill;
+        segment->spf = spf;
+        segment->begin = i * frames_per_segment * spf;
+        segment->end = (i == count - 1) ? sound_file->num_samples : segment->begin + frames_per_segment * spf;
+        segment->is_last = (i == count - 1);
+        segment->err = MPG123_ERR;
+    }
+
+    // The calling thread decodes the first segment itself
+    for (int i = 1; i < count; ++i)
+    {
+        started[i] = (pthread_create(&threads[i], NULL, decodeSegment, &segments[i]) == 0);
+
+        if (!started[i])
+        {
+            __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "could not start thread, decode segment %i in place", i);
+            decodeSegment(&segments[i]);
+        }
+    }
+
+    decodeSegment(&segments[0]);
+
+    int result = (int) (sound_file->num_samples * sound_file->channels);
+
+    for (int i = 0; i < count; ++i)
+    {
+        if (i > 0 && started[i])
+        {
+            pthread_join(threads[i], NULL);
+        }
+
+        if (segments[i].err != MPG123_OK)
+        {
+            result = 0;
+        }
+    }
+
+    delete[] segments;
+    delete[] threads;
+    delete[] started;
+
+    if (result > 0)
+    {
+        __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "processed: %i samples", result);
+    }
+    else
+    {
+        __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Error: decoding failed");
+    }
+
+    return result;
+}
+
 /**
  *
  */
@@ -221,6 +626,8 @@ JNIEXPORT jint JNICALL Java_de_mpg123_MPG123Decoder_cleanUp
     SoundFile *sound_file = (SoundFile *)sound_file_handle;
 
     delete sound_file;
+
+    return 0;
 }
 
 JNIEXPORT jlong JNICALL Java_de_mpg123_MPG123Decoder_checkFormat
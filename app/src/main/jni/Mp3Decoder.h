@@ -12,8 +12,6 @@ public:
 
     Mp3Decoder();
     ~Mp3Decoder();
-
-    mpg123_handle* m_mh;
 };
 
 #ifdef __cplusplus
@@ -32,6 +30,21 @@ JNIEXPORT jint JNICALL Java_de_mpg123_MPG123Decoder_decode
 JNIEXPORT jint JNICALL Java_de_mpg123_MPG123Decoder_transfer
         (JNIEnv*, jobject, jlong, jshortArray);
 
+JNIEXPORT jobject JNICALL Java_de_mpg123_MPG123Decoder_getPcm
+        (JNIEnv*, jobject, jlong);
+
+JNIEXPORT jint JNICALL Java_de_mpg123_MPG123Decoder_load
+        (JNIEnv*, jobject, jlong, jobject, jint, jint);
+
+JNIEXPORT jint JNICALL Java_de_mpg123_MPG123Decoder_decodeNext
+        (JNIEnv*, jobject, jlong, jobject, jint, jint);
+
+JNIEXPORT jlong JNICALL Java_de_mpg123_MPG123Decoder_seek
+        (JNIEnv*, jobject, jlong, jlong);
+
+JNIEXPORT jint JNICALL Java_de_mpg123_MPG123Decoder_decodeParallel
+        (JNIEnv*, jobject, jlong, jint);
+
 JNIEXPORT jint JNICALL Java_de_mpg123_MPG123Decoder_cleanUp
         (JNIEnv*, jobject, jlong);
 
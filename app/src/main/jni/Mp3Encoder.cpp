@@ -28,6 +28,13 @@ JNIEXPORT jint JNICALL Java_net_lame_LameEncoder_encode(
     return simple_lame_lib_encode(env, glfList.at(instanceIndex), buffer_l, buffer_r, samples, mp3buf);
 }
 
+JNIEXPORT jint JNICALL Java_net_lame_LameEncoder_encodeDirect(
+        JNIEnv *env, jclass cls, jint instanceIndex, jobject buffer_l,
+        jshortArray buffer_r, jint samples, jbyteArray mp3buf)
+{
+    return simple_lame_lib_encodeDirect(env, glfList.at(instanceIndex), buffer_l, buffer_r, samples, mp3buf);
+}
+
 JNIEXPORT jint JNICALL Java_net_lame_LameEncoder_encodeBufferInterleaved(
         JNIEnv *env, jclass cls, jint instanceIndex, jshortArray pcm,
         jint samples, jbyteArray mp3buf)
@@ -17,6 +17,9 @@ JNIEXPORT jint JNICALL Java_net_lame_LameEncoder_init
 JNIEXPORT jint JNICALL Java_net_lame_LameEncoder_encode
         (JNIEnv*, jclass, jint, jshortArray, jshortArray, jint, jbyteArray);
 
+JNIEXPORT jint JNICALL Java_net_lame_LameEncoder_encodeDirect
+        (JNIEnv*, jclass, jint, jobject, jshortArray, jint, jbyteArray);
+
 JNIEXPORT jint JNICALL Java_net_lame_LameEncoder_encodeBufferInterleaved
         (JNIEnv*, jclass, jint, jshortArray, jint, jbyteArray);
 
@@ -8,6 +8,7 @@ static const char* LOG_TAG = "NATIVE_SOUND_FILE";
 SoundFile::SoundFile(const char* file_path_) :
     file_path(file_path_),
     number_beats_detected(0),
+    mh(NULL),
     channels(0),
     rate(0),
     num_samples(0),
@@ -16,14 +17,23 @@ SoundFile::SoundFile(const char* file_path_) :
     left_samples(0),
     offset(0),
     pcm_buffer(NULL),
-    music_buffer(NULL)
+    music_buffer(NULL),
+    owns_music_buffer(true)
 {}
 
 SoundFile::~SoundFile()
 {
+     if (mh != NULL) {
+         mpg123_close(mh);
+         mpg123_delete(mh);
+     }
+
      free(buffer);
      delete[] pcm_buffer;
-     delete[] music_buffer;
+
+     if (owns_music_buffer) {
+         delete[] music_buffer;
+     }
 }
 
 int SoundFile::init(int channels_, long rate_, long num_samples_, int encoding_, size_t buffer_size_)
@@ -46,14 +56,45 @@ int SoundFile::init(int channels_, long rate_, long num_samples_, int encoding_,
     // The buffer will be needed in the reading/decoding step
     buffer = (unsigned char*)malloc(buffer_size);
 
-    // Prepare memory for pcm data
-    pcm_buffer = new short[num_samples * channels];
-    __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "assigned pcm buffer, size: %li", num_samples * channels);
+    return 0;
+}
+
+/**
+ * Allocate the buffers of the whole song, only the whole file decoding needs them.
+ * Incremental decoding only uses the decode buffer.
+ */
+int SoundFile::allocatePcm()
+{
+    if (pcm_buffer == NULL)
+    {
+        // Prepare memory for pcm data
+        pcm_buffer = new short[num_samples * channels];
+        __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "assigned pcm buffer, size: %li", num_samples * channels);
+    }
 
     // TODO: check if channel is really == 2
-    // Interpolate raw (pcm) audio data
-    music_buffer = new short[num_samples];
-    __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "assigned music buffer, size: %li", num_samples);
+    // Interpolate raw (pcm) audio data, it may be loaded already
+    return allocateMusic();
+}
+
+/**
+ * Allocate the mixed down music channel of the whole song, the segmented decoding writes it
+ * directly without the interleaved pcm buffer.
+ */
+int SoundFile::allocateMusic()
+{
+    // A borrowed music buffer may be read only, decoding writes its own
+    if (!owns_music_buffer)
+    {
+        music_buffer = NULL;
+        owns_music_buffer = true;
+    }
+
+    if (music_buffer == NULL)
+    {
+        music_buffer = new short[num_samples];
+        __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "assigned music buffer, size: %li", num_samples);
+    }
 
     return 0;
 }
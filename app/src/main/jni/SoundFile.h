@@ -3,6 +3,7 @@
 
 #include <jni.h>
 #include <stdlib.h>
+#include <mpg123/mpg123.h>
 
 // TODO: replace by SNDFILE
 /**
@@ -12,6 +13,9 @@ class SoundFile {
 
 public:
 
+    // Decoder handle of this file, every file keeps its own read position
+    mpg123_handle* mh;
+
     // Other fields
     int channels;
     long rate;
@@ -24,11 +28,16 @@ public:
     short* pcm_buffer;
     short* music_buffer;
 
+    // False if the music buffer is borrowed, e.g. a mapped cache file, and must not be deleted
+    bool owns_music_buffer;
+
     // Constructor / destructor
     SoundFile(const char* file_path_);
     ~SoundFile();
 
     int init(int channels_, long rate_, long num_samples_, int encoding_, size_t buffer_size_);
+    int allocatePcm();
+    int allocateMusic();
     int interleaveChannels();
 
     // Absolute path to the sound file
@@ -109,6 +109,32 @@ jint simple_lame_lib_encode(
     return result;
 }
 
+jint simple_lame_lib_encodeDirect(
+        JNIEnv* env, lame_global_flags* glf,
+        jobject buffer_l, jshortArray buffer_r,
+        jint samples, jbyteArray mp3buf) {
+
+    // The left channel is read in place, e.g. the native pcm of the decoder
+    jshort* j_buffer_l = (jshort*) (*env)->GetDirectBufferAddress(env, buffer_l);
+
+    if (j_buffer_l == NULL) {
+        return -2;
+    }
+
+    jshort* j_buffer_r = (*env)->GetShortArrayElements(env, buffer_r, NULL);
+
+    const jsize mp3buf_size = (*env)->GetArrayLength(env, mp3buf);
+    jbyte* j_mp3buf = (*env)->GetByteArrayElements(env, mp3buf, NULL);
+
+    int result = lame_encode_buffer(glf, j_buffer_l, j_buffer_r,
+                                    samples, j_mp3buf, mp3buf_size);
+
+    (*env)->ReleaseShortArrayElements(env, buffer_r, j_buffer_r, JNI_ABORT);
+    (*env)->ReleaseByteArrayElements(env, mp3buf, j_mp3buf, 0);
+
+    return result;
+}
+
 jint simple_lame_lib_encodeBufferInterleaved(
         JNIEnv* env, lame_global_flags* glf,
         jshortArray pcm, jint samples, jbyteArray mp3buf) {
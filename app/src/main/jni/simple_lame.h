@@ -24,6 +24,11 @@ jint simple_lame_lib_encode(
         jshortArray buffer_l, jshortArray buffer_r,
         jint samples, jbyteArray mp3buf);
 
+jint simple_lame_lib_encodeDirect(
+        JNIEnv* env, lame_global_flags* glf,
+        jobject buffer_l, jshortArray buffer_r,
+        jint samples, jbyteArray mp3buf);
+
 jint simple_lame_lib_encodeBufferInterleaved(
         JNIEnv *env, lame_global_flags* glf,
         jshortArray pcm, jint samples, jbyteArray mp3buf);
@@ -0,0 +1,82 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+public class AudioRingBufferTest {
+
+    private static final int NUM_CHUNKS = 100000;
+
+    @Test
+    public void testOfferAndRemove() {
+
+        AudioRingBuffer<short[]> ring = new AudioRingBuffer<>(2);
+        short[] first = new short[4];
+        short[] second = new short[8];
+
+        assertTrue(ring.isEmpty());
+        assertTrue(ring.offer(first, 3, 100));
+        assertTrue(ring.offer(second, 5, 200));
+        assertTrue(ring.isFull());
+        assertFalse(ring.offer(first, 1, 300));
+
+        assertSame(first, ring.peekBuffer());
+        assertEquals(3, ring.peekLength());
+        assertEquals(100, ring.peekStartSample());
+        ring.remove();
+
+        assertSame(second, ring.peekBuffer());
+        assertEquals(5, ring.peekLength());
+        assertEquals(200, ring.peekStartSample());
+        ring.remove();
+
+        ring.close();
+        assertTrue(ring.isDrained());
+    }
+
+    @Test
+    public void testProducerConsumer() throws InterruptedException {
+
+        final AudioRingBuffer<short[]> ring = new AudioRingBuffer<>(3);
+        final short[] buffer = new short[1];
+
+        // Producer offers increasing stream positions and lengths, the consumer checks their order
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < NUM_CHUNKS; ) {
+                    if (ring.offer(buffer, i % 4096, i)) {
+                        ++i;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+                ring.close();
+            }
+        });
+        producer.start();
+
+        long expected = 0;
+        while (!ring.isDrained()) {
+            if (!ring.isEmpty()) {
+                assertEquals(expected, ring.peekStartSample());
+                assertEquals(expected % 4096, ring.peekLength());
+                ring.remove();
+                expected++;
+            } else {
+                Thread.yield();
+            }
+        }
+
+        producer.join();
+        assertEquals(NUM_CHUNKS, expected);
+    }
+}
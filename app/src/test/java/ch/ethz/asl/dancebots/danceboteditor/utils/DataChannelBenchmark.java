@@ -0,0 +1,127 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+
+/**
+ * Throughput of the data channel modulators and the demodulator. Not part of the unit tests, run
+ * it explicitly after removing the Ignore annotation. The results are written to
+ * build/reports/benchmarks/DataChannelBenchmark.txt of the module.
+ */
+@Ignore("Benchmark, run explicitly")
+public class DataChannelBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int NUM_MESSAGES = 2000;
+    private static final int NUM_RUNS = 20;
+
+    private static final String REPORT_FILE = "build/reports/benchmarks/DataChannelBenchmark.txt";
+
+    private final int[] mPayloads = new int[NUM_MESSAGES];
+    private final int[] mSampleOffsets = new int[NUM_MESSAGES];
+    private final short[] mLastBitLevels = new short[NUM_MESSAGES];
+    private int mNumSamples;
+
+    @Test
+    public void benchmarkThroughput() throws IOException {
+
+        createMessages();
+
+        DataChannelModulator reference = new ReferenceDataChannelModulator(DataChannelTimings.DEFAULT, SAMPLE_RATE);
+        DataChannelModulator table = new TableDataChannelModulator(DataChannelTimings.DEFAULT, SAMPLE_RATE);
+        short[] dataBuffer = modulate(table);
+
+        long startTime = System.nanoTime();
+        for (int run = 0; run < NUM_RUNS; ++run) {
+            modulate(reference);
+        }
+        long referenceTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for (int run = 0; run < NUM_RUNS; ++run) {
+            modulate(table);
+        }
+        long tableTime = System.nanoTime() - startTime;
+
+        DataChannelDemodulator demodulator = new DataChannelDemodulator(SAMPLE_RATE);
+        startTime = System.nanoTime();
+        for (int run = 0; run < NUM_RUNS; ++run) {
+            demodulator.reset();
+            demodulator.demodulate(dataBuffer, 0, dataBuffer.length);
+            demodulator.flush();
+        }
+        long demodulatorTime = System.nanoTime() - startTime;
+
+        assertEquals(NUM_MESSAGES, demodulator.getMessageCount());
+
+        File report = new File(REPORT_FILE);
+        File directory = report.getParentFile();
+        assertTrue(directory.isDirectory() || directory.mkdirs());
+
+        PrintWriter writer = new PrintWriter(new FileWriter(report));
+        try {
+            writer.println("reference modulator: " + messagesPerSecond(referenceTime) + " messages/s");
+            writer.println("table modulator: " + messagesPerSecond(tableTime) + " messages/s");
+            writer.println("demodulator: " + messagesPerSecond(demodulatorTime) + " messages/s");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Create random messages separated by idle gaps of random length
+     */
+    private void createMessages() {
+
+        Random random = new Random(42);
+        DataChannelModulator modulator = new ReferenceDataChannelModulator(DataChannelTimings.DEFAULT, SAMPLE_RATE);
+
+        int samplePos = 0;
+        short level = DanceBotConfiguration.DATA_LEVEL;
+
+        for (int i = 0; i < NUM_MESSAGES; ++i) {
+
+            samplePos += modulator.getNumSamplesReset() + random.nextInt(200);
+
+            mPayloads[i] = random.nextInt(1 << DataChannelModulator.PAYLOAD_BITS);
+            mSampleOffsets[i] = samplePos;
+            mLastBitLevels[i] = level;
+
+            samplePos += modulator.getMessageLength(mPayloads[i]);
+            level *= -1;
+        }
+
+        mNumSamples = samplePos + modulator.getNumSamplesReset();
+    }
+
+    private short[] modulate(DataChannelModulator modulator) {
+
+        short[] dataBuffer = new short[mNumSamples];
+        Arrays.fill(dataBuffer, (short) -DanceBotConfiguration.DATA_LEVEL);
+
+        for (int i = 0; i < NUM_MESSAGES; ++i) {
+            modulator.writeMessage(dataBuffer, mSampleOffsets[i], mPayloads[i], mLastBitLevels[i]);
+        }
+
+        return dataBuffer;
+    }
+
+    private static long messagesPerSecond(long nanoSecs) {
+        return (long) NUM_RUNS * NUM_MESSAGES * 1000000000L / Math.max(1, nanoSecs);
+    }
+}
@@ -0,0 +1,296 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+public class DataChannelDemodulatorTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int NUM_MESSAGES = 2000;
+
+    private static int[] payloads;
+    private static int[] sampleOffsets;
+    private static short[] lastBitLevels;
+    private static int numSamples;
+
+    @BeforeClass
+    public static void setUp() {
+
+        Random random = new Random(42);
+
+        payloads = new int[NUM_MESSAGES];
+        sampleOffsets = new int[NUM_MESSAGES];
+        lastBitLevels = new short[NUM_MESSAGES];
+
+        DataChannelModulator modulator = new ReferenceDataChannelModulator(DataChannelTimings.DEFAULT, SAMPLE_RATE);
+
+        // Messages separated by idle gaps of random length, every message inverts the level
+        int samplePos = 0;
+        short level = DanceBotConfiguration.DATA_LEVEL;
+
+        for (int i = 0; i < NUM_MESSAGES; ++i) {
+
+            samplePos += modulator.getNumSamplesReset() + random.nextInt(200);
+
+            payloads[i] = random.nextInt(1 << DataChannelModulator.PAYLOAD_BITS);
+            sampleOffsets[i] = samplePos;
+            lastBitLevels[i] = level;
+
+            samplePos += modulator.getMessageLength(payloads[i]);
+            level *= -1;
+        }
+
+        numSamples = samplePos + modulator.getNumSamplesReset();
+    }
+
+    private static short[] modulate(DataChannelModulator modulator) {
+
+        short[] dataBuffer = new short[numSamples];
+        Arrays.fill(dataBuffer, (short) -DanceBotConfiguration.DATA_LEVEL);
+
+        for (int i = 0; i < NUM_MESSAGES; ++i) {
+            modulator.writeMessage(dataBuffer, sampleOffsets[i], payloads[i], lastBitLevels[i]);
+        }
+
+        return dataBuffer;
+    }
+
+    private static void assertMessages(DataChannelDemodulator demodulator) {
+
+        assertEquals(NUM_MESSAGES, demodulator.getMessageCount());
+        assertEquals(0, demodulator.getErrorCount());
+
+        for (int i = 0; i < NUM_MESSAGES; ++i) {
+
+            assertEquals(sampleOffsets[i], demodulator.getSampleOffset(i));
+
+            // The last bit has the idle level, if the message started from +DATA_LEVEL
+            boolean isStretched = (lastBitLevels[i] > 0);
+            assertEquals(isStretched, demodulator.isStretched(i));
+
+            int mask = isStretched ? 0x7FFFFF : 0xFFFFFF;
+            assertEquals(payloads[i] & mask, demodulator.getPayload(i) & mask);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() {
+
+        short[] dataBuffer = modulate(new ReferenceDataChannelModulator(DataChannelTimings.DEFAULT, SAMPLE_RATE));
+
+        DataChannelDemodulator demodulator = new DataChannelDemodulator(SAMPLE_RATE);
+        demodulator.demodulate(dataBuffer, 0, dataBuffer.length);
+        demodulator.flush();
+
+        assertMessages(demodulator);
+    }
+
+    @Test
+    public void testRoundTripInChunks() {
+
+        short[] dataBuffer = modulate(new ReferenceDataChannelModulator(DataChannelTimings.DEFAULT, SAMPLE_RATE));
+
+        DataChannelDemodulator demodulator = new DataChannelDemodulator(SAMPLE_RATE);
+        Random random = new Random(7);
+
+        // Chunks of the size of the audio buffers of the music stream
+        for (int offset = 0; offset < dataBuffer.length; ) {
+            int length = Math.min(dataBuffer.length - offset, 1 + random.nextInt(4096));
+            demodulator.demodulate(dataBuffer, offset, length);
+            offset += length;
+        }
+        demodulator.flush();
+
+        assertMessages(demodulator);
+    }
+
+    @Test
+    public void testRoundTripShortTimings() {
+
+        DataChannelTimings timings = new DataChannelTimings(20, 12, 4);
+        DataChannelModulator modulator = new TableDataChannelModulator(timings, SAMPLE_RATE);
+
+        short[] dataBuffer = new short[(modulator.getNumSamplesReset() + modulator.getMessageLength(0xFFFFFF)) * NUM_MESSAGES];
+        Arrays.fill(dataBuffer, (short) -DanceBotConfiguration.DATA_LEVEL);
+
+        // Back to back messages, the last bit of every message is followed by a reset pulse
+        int samplePos = modulator.getNumSamplesReset();
+        short level = DanceBotConfiguration.DATA_LEVEL;
+        for (int i = 0; i < NUM_MESSAGES; ++i) {
+            samplePos += modulator.writeMessage(dataBuffer, samplePos, payloads[i], level);
+            level *= -1;
+        }
+
+        DataChannelDemodulator demodulator = new DataChannelDemodulator(timings, SAMPLE_RATE);
+        demodulator.demodulate(dataBuffer, 0, dataBuffer.length);
+        demodulator.flush();
+
+        assertEquals(NUM_MESSAGES, demodulator.getMessageCount());
+        for (int i = 0; i < NUM_MESSAGES - 1; ++i) {
+            assertEquals(payloads[i], demodulator.getPayload(i));
+        }
+    }
+
+    @Test
+    public void testRoundTripSampleRates() {
+
+        for (int sampleRate : new int[] {22050, 48000}) {
+
+            DataChannelModulator modulator = new TableDataChannelModulator(DataChannelTimings.DEFAULT, sampleRate);
+
+            // The bits keep their duration, not their number of samples
+            assertEquals(Math.round(DanceBotConfiguration.BIT_LENGTH_ONE_NOMINAL * (float) sampleRate / SAMPLE_RATE), modulator.getNumSamplesOne());
+
+            short[] dataBuffer = new short[(modulator.getNumSamplesReset() + modulator.getMessageLength(0xFFFFFF)) * NUM_MESSAGES];
+            Arrays.fill(dataBuffer, (short) -DanceBotConfiguration.DATA_LEVEL);
+
+            int samplePos = modulator.getNumSamplesReset();
+            short level = DanceBotConfiguration.DATA_LEVEL;
+            for (int i = 0; i < NUM_MESSAGES; ++i) {
+                samplePos += modulator.writeMessage(dataBuffer, samplePos, payloads[i], level);
+                level *= -1;
+            }
+
+            DataChannelDemodulator demodulator = new DataChannelDemodulator(sampleRate);
+            demodulator.demodulate(dataBuffer, 0, dataBuffer.length);
+            demodulator.flush();
+
+            assertEquals(NUM_MESSAGES, demodulator.getMessageCount());
+            for (int i = 0; i < NUM_MESSAGES - 1; ++i) {
+                assertEquals(payloads[i], demodulator.getPayload(i));
+            }
+        }
+    }
+
+    @Test
+    public void testGoldenTableModulator() {
+
+        // The table modulator must be bit exact with the reference modulator
+        assertArrayEquals(
+                modulate(new ReferenceDataChannelModulator(DataChannelTimings.DEFAULT, SAMPLE_RATE)),
+                modulate(new TableDataChannelModulator(DataChannelTimings.DEFAULT, SAMPLE_RATE)));
+    }
+
+    @Test
+    public void testGoldenCachedModulator() {
+
+        // The cached modulator must be bit exact with the reference modulator
+        assertArrayEquals(
+                modulate(new ReferenceDataChannelModulator(DataChannelTimings.DEFAULT, SAMPLE_RATE)),
+                modulate(new CachedDataChannelModulator(new TableDataChannelModulator(DataChannelTimings.DEFAULT, SAMPLE_RATE))));
+    }
+
+    @Test
+    public void testCachedModulatorHits() {
+
+        final int messagesPerPayload = 10;
+
+        DataChannelModulator modulator = new TableDataChannelModulator(DataChannelTimings.DEFAULT, SAMPLE_RATE);
+        CachedDataChannelModulator cachedModulator = new CachedDataChannelModulator(modulator);
+
+        short[] expected = new short[modulator.getMessageLength(0xFFFFFF) * NUM_MESSAGES];
+        short[] dataBuffer = new short[expected.length];
+
+        // Back to back messages, the payload only changes every few messages like within a beat
+        int samplePos = 0;
+        short level = DanceBotConfiguration.DATA_LEVEL;
+        for (int i = 0; i < NUM_MESSAGES; ++i) {
+            int payload = payloads[i / messagesPerPayload];
+            modulator.writeMessage(expected, samplePos, payload, level);
+            samplePos += cachedModulator.writeMessage(dataBuffer, samplePos, payload, level);
+            level *= -1;
+        }
+
+        assertArrayEquals(expected, dataBuffer);
+
+        // Every payload is rendered once per polarity, all other messages are copied
+        int numMisses = 2 * NUM_MESSAGES / messagesPerPayload;
+        assertEquals(numMisses, cachedModulator.getMissCount());
+        assertEquals(NUM_MESSAGES - numMisses, cachedModulator.getHitCount());
+    }
+
+    @Test
+    public void testGoldenEdgeList() {
+
+        DataChannelModulator modulator = new ReferenceDataChannelModulator(DataChannelTimings.DEFAULT, SAMPLE_RATE);
+        DataChannelEdgeList edgeList = new DataChannelEdgeList(
+                modulator.getNumSamplesReset(),
+                modulator.getNumSamplesOne(),
+                modulator.getNumSamplesZero());
+
+        for (int i = 0; i < NUM_MESSAGES; ++i) {
+            edgeList.addMessage(sampleOffsets[i], payloads[i], lastBitLevels[i]);
+        }
+
+        short[] dataBuffer = new short[numSamples];
+        edgeList.expand(dataBuffer, 0, 0, numSamples);
+
+        assertArrayEquals(modulate(modulator), dataBuffer);
+    }
+
+    @Test
+    public void testEdgeListLoop() {
+
+        DataChannelModulator modulator = new ReferenceDataChannelModulator(DataChannelTimings.DEFAULT, SAMPLE_RATE);
+        final int numWraps = 3;
+
+        for (int numMessages : new int[] {NUM_MESSAGES, NUM_MESSAGES - 1}) {
+
+            DataChannelEdgeList edgeList = new DataChannelEdgeList(
+                    modulator.getNumSamplesReset(),
+                    modulator.getNumSamplesOne(),
+                    modulator.getNumSamplesZero());
+
+            for (int i = 0; i < numMessages; ++i) {
+                edgeList.addMessage(sampleOffsets[i], payloads[i], lastBitLevels[i]);
+            }
+
+            // An odd number of messages inverts the level, the loop needs an inverted repeat
+            short[] firstRepeat = new short[numSamples];
+            short[] secondRepeat = new short[numSamples];
+            int numRepeats = edgeList.expandLoop(firstRepeat, secondRepeat, 0);
+            assertEquals(1 + numMessages % 2, numRepeats);
+
+            // Play the loop, the level keeps alternating across every wrap
+            short[] dataBuffer = new short[(numWraps + 1) * numSamples];
+            for (int repeat = 0; repeat <= numWraps; ++repeat) {
+                short[] dataChannel = (repeat % numRepeats == 0) ? firstRepeat : secondRepeat;
+                System.arraycopy(dataChannel, 0, dataBuffer, repeat * numSamples, numSamples);
+            }
+
+            DataChannelDemodulator demodulator = new DataChannelDemodulator(SAMPLE_RATE);
+            demodulator.demodulate(dataBuffer, 0, dataBuffer.length);
+            demodulator.flush();
+
+            assertEquals((numWraps + 1) * numMessages, demodulator.getMessageCount());
+            assertEquals(0, demodulator.getErrorCount());
+
+            for (int i = 1; i < demodulator.getMessageCount(); ++i) {
+                assertNotEquals(demodulator.isStretched(i - 1), demodulator.isStretched(i));
+            }
+
+            // A message dropped at the end of a beat inverts the level as well
+            edgeList.dropMessage();
+            assertEquals(numMessages % 2 == 0, edgeList.isLevelInverted());
+        }
+    }
+
+    @Test
+    public void testDecodeVelocity() {
+        assertEquals(0, DataChannelDemodulator.decodeVelocity(0x80));
+        assertEquals(127, DataChannelDemodulator.decodeVelocity(0xFF));
+        assertEquals(-127, DataChannelDemodulator.decodeVelocity(0x7F));
+        assertEquals(-1, DataChannelDemodulator.decodeVelocity(0x01));
+    }
+}
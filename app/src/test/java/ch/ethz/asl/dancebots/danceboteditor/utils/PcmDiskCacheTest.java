@@ -0,0 +1,146 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+public class PcmDiskCacheTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int NUM_SAMPLES = 10000;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("pcm_cache", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mDirectory);
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+
+        PcmDiskCache cache = new PcmDiskCache(new File(mDirectory, "cache"), PcmDiskCache.DEFAULT_BUDGET_BYTES);
+        File song = createSong("song.mp3", 100);
+
+        assertNull(cache.get(song.getPath()));
+
+        cache.put(song.getPath(), SAMPLE_RATE, 1, createPcm(NUM_SAMPLES));
+
+        PcmDiskCache.Entry entry = cache.get(song.getPath());
+        assertNotNull(entry);
+        assertEquals(SAMPLE_RATE, entry.getSampleRate());
+        assertEquals(1, entry.getChannelCount());
+        assertEquals(NUM_SAMPLES, entry.getNumSamples());
+
+        ShortBuffer pcm = entry.getPcm();
+        assertEquals(NUM_SAMPLES, pcm.remaining());
+        for (int i = 0; i < NUM_SAMPLES; ++i) {
+            assertEquals((short) (7 * i), pcm.get(i));
+        }
+    }
+
+    @Test
+    public void testChangedSongIsNotCached() throws IOException {
+
+        PcmDiskCache cache = new PcmDiskCache(new File(mDirectory, "cache"), PcmDiskCache.DEFAULT_BUDGET_BYTES);
+        File song = createSong("song.mp3", 100);
+
+        cache.put(song.getPath(), SAMPLE_RATE, 1, createPcm(NUM_SAMPLES));
+        assertNotNull(cache.get(song.getPath()));
+
+        // Same path, different content
+        createSong("song.mp3", 200);
+        assertNull(cache.get(song.getPath()));
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws IOException {
+
+        File directory = new File(mDirectory, "cache");
+        long entrySize = 24 + 2 * NUM_SAMPLES;
+
+        // Room for two songs
+        PcmDiskCache cache = new PcmDiskCache(directory, 2 * entrySize);
+        File first = createSong("first.mp3", 100);
+        File second = createSong("second.mp3", 101);
+        File third = createSong("third.mp3", 102);
+
+        cache.put(first.getPath(), SAMPLE_RATE, 1, createPcm(NUM_SAMPLES));
+        cache.put(second.getPath(), SAMPLE_RATE, 1, createPcm(NUM_SAMPLES));
+        assertEquals(2 * entrySize, cache.getSize());
+
+        // Use the first song, such that the second one is the least recently used
+        setLastUsed(directory, 0);
+        assertNotNull(cache.get(first.getPath()));
+
+        cache.put(third.getPath(), SAMPLE_RATE, 1, createPcm(NUM_SAMPLES));
+
+        assertEquals(2 * entrySize, cache.getSize());
+        assertNotNull(cache.get(first.getPath()));
+        assertNull(cache.get(second.getPath()));
+        assertNotNull(cache.get(third.getPath()));
+
+        cache.setBudget(0);
+        assertEquals(0, cache.getSize());
+        assertFalse(cache.getBudget() > 0);
+    }
+
+    private File createSong(String name, int size) throws IOException {
+
+        File song = new File(mDirectory, name);
+        FileOutputStream out = new FileOutputStream(song);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return song;
+    }
+
+    private static ShortBuffer createPcm(int numSamples) {
+
+        ShortBuffer pcm = ShortBuffer.allocate(numSamples);
+        for (int i = 0; i < numSamples; ++i) {
+            pcm.put(i, (short) (7 * i));
+        }
+        return pcm;
+    }
+
+    private static void setLastUsed(File directory, long time) {
+        for (File file : directory.listFiles()) {
+            assertTrue(file.setLastModified(time));
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,92 @@
+package ch.ethz.asl.dancebots.danceboteditor.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Author: Andrin Jenal
+ * Copyright: ETH Zürich
+ */
+public class StreamHistogramTest {
+
+    private static final int NUM_VALUES = 100000;
+
+    @Test
+    public void testBuckets() {
+
+        assertEquals(0, StreamHistogram.getBucket(0));
+        assertEquals(1, StreamHistogram.getBucket(1));
+        assertEquals(2, StreamHistogram.getBucket(2));
+        assertEquals(2, StreamHistogram.getBucket(3));
+        assertEquals(11, StreamHistogram.getBucket(1024));
+        assertEquals(63, StreamHistogram.getBucket(Long.MAX_VALUE));
+
+        // Every bucket counts exactly the values between its bounds
+        for (int i = 0; i < 63; ++i) {
+            assertEquals(i, StreamHistogram.getBucket(StreamHistogram.getBucketLowerBound(i)));
+            assertEquals(i, StreamHistogram.getBucket(StreamHistogram.getBucketUpperBound(i)));
+            assertEquals(i + 1, StreamHistogram.getBucket(StreamHistogram.getBucketUpperBound(i) + 1));
+        }
+        assertEquals(Long.MAX_VALUE, StreamHistogram.getBucketUpperBound(63));
+    }
+
+    @Test
+    public void testPercentiles() {
+
+        StreamHistogram histogram = new StreamHistogram("test", "ns");
+        assertEquals(0, histogram.getPercentile(50));
+
+        for (int i = 0; i < 99; ++i) {
+            histogram.record(100);
+        }
+        histogram.record(5000);
+        histogram.record(-1);
+
+        assertEquals(101, histogram.getCount());
+        assertEquals(1, histogram.getBucketCount(0));
+        assertEquals(5000, histogram.getMax());
+        assertEquals((99 * 100 + 5000) / 101.0, histogram.getMean(), 1e-9);
+
+        // 100 lies in [64, 127], the maximum caps the last bucket
+        assertEquals(127, histogram.getPercentile(50));
+        assertEquals(127, histogram.getPercentile(99));
+        assertEquals(5000, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void testConcurrentRecord() throws InterruptedException {
+
+        final StreamHistogram histogram = new StreamHistogram("test", "frames");
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < NUM_VALUES; ++i) {
+                        histogram.record(i + offset);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long count = 0;
+        for (int i = 0; i < 64; ++i) {
+            count += histogram.getBucketCount(i);
+        }
+
+        assertEquals(threads.length * NUM_VALUES, histogram.getCount());
+        assertEquals(histogram.getCount(), count);
+        assertEquals(NUM_VALUES - 1 + threads.length - 1, histogram.getMax());
+    }
+}